@@ -76,6 +76,83 @@ async function getCurrentPackage() {
   return await getUpdateMetadata(Sparks.UpdateState.LATEST);
 }
 
+// Only the Android module reports disk usage, so this resolves to null on other platforms.
+async function getDiskUsage() {
+  if (!NativeSparks.getDiskUsage) {
+    return null;
+  }
+
+  return await NativeSparks.getDiskUsage();
+}
+
+async function getExecutorMetrics() {
+  if (!NativeSparks.getExecutorMetrics) {
+    return null;
+  }
+
+  return await NativeSparks.getExecutorMetrics();
+}
+
+async function getRestartMetrics() {
+  if (!NativeSparks.getRestartMetrics) {
+    return null;
+  }
+
+  return await NativeSparks.getRestartMetrics();
+}
+
+// Only the Android module records download attempts, so there are none on other platforms.
+async function getDownloadAttempts() {
+  if (!NativeSparks.getDownloadAttempts) {
+    return [];
+  }
+
+  return await NativeSparks.getDownloadAttempts();
+}
+
+// Only the Android module can control downloads in progress. The controls resolve to whether the
+// package was being downloaded.
+async function pauseDownload(packageHash) {
+  if (!NativeSparks.pauseDownload) {
+    return false;
+  }
+
+  return await NativeSparks.pauseDownload(packageHash);
+}
+
+async function resumeDownload(packageHash) {
+  if (!NativeSparks.resumeDownload) {
+    return false;
+  }
+
+  return await NativeSparks.resumeDownload(packageHash);
+}
+
+async function cancelDownload(packageHash) {
+  if (!NativeSparks.cancelDownload) {
+    return false;
+  }
+
+  return await NativeSparks.cancelDownload(packageHash);
+}
+
+// Only the Android module retains packages, so there are none on other platforms.
+async function getRetainedPackages() {
+  if (!NativeSparks.getRetainedPackages) {
+    return [];
+  }
+
+  return await NativeSparks.getRetainedPackages();
+}
+
+async function activatePackage(packageHash) {
+  if (!NativeSparks.activatePackage) {
+    throw new Error("Activating retained packages is not supported on this platform.");
+  }
+
+  await NativeSparks.activatePackage(packageHash);
+}
+
 async function getUpdateMetadata(updateState) {
   let updateMetadata = await NativeSparks.getUpdateMetadata(updateState || Sparks.UpdateState.RUNNING);
   if (updateMetadata) {
@@ -558,14 +635,23 @@ if (NativeSparks) {
 
   Object.assign(Sparks, {
     AcquisitionSdk: Sdk,
+    activatePackage,
+    cancelDownload,
     checkForUpdate,
     getConfiguration,
     getCurrentPackage,
+    getDiskUsage,
+    getDownloadAttempts,
+    getExecutorMetrics,
+    getRestartMetrics,
+    getRetainedPackages,
     getUpdateMetadata,
     log,
     notifyAppReady: notifyApplicationReady,
     notifyApplicationReady,
+    pauseDownload,
     restartApp,
+    resumeDownload,
     setUpTestDependencies,
     sync,
     disallowRestart: NativeSparks.disallow,
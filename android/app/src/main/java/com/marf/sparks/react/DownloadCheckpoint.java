@@ -0,0 +1,9 @@
+package com.marf.sparks.react;
+
+import java.io.IOException;
+
+// Checked between the reads of a download, which it stops by throwing, e.g. because the download
+// was paused or cancelled.
+interface DownloadCheckpoint {
+    void check() throws IOException;
+}
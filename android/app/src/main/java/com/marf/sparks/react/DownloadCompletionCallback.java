@@ -0,0 +1,6 @@
+package com.marf.sparks.react;
+
+// Called once a download is complete, with what it failed with, or null if it succeeded.
+interface DownloadCompletionCallback {
+    void call(Throwable failure);
+}
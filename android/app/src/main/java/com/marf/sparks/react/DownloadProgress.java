@@ -24,6 +24,14 @@ class DownloadProgress {
         return map;
     }
 
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
     public boolean isCompleted() {
         return mTotalBytes == mReceivedBytes;
     }
@@ -0,0 +1,68 @@
+package com.marf.sparks.react;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Counts the bytes read from a download stream and reports them as download progress, for
+// consumers that process the stream directly instead of copying it to a file.
+class DownloadProgressInputStream extends FilterInputStream {
+    private final long mTotalBytes;
+    private long mReceivedBytes;
+    private final DownloadProgressCallback mProgressCallback;
+    private final DownloadCheckpoint mCheckpoint;
+
+    public DownloadProgressInputStream(InputStream in, long totalBytes, DownloadProgressCallback progressCallback, DownloadCheckpoint checkpoint) {
+        super(in);
+        mTotalBytes = totalBytes;
+        mProgressCallback = progressCallback;
+        mCheckpoint = checkpoint;
+    }
+
+    public long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        mCheckpoint.check();
+        int b = super.read();
+        if (b >= 0) {
+            onBytesRead(1);
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        mCheckpoint.check();
+        int numBytesRead = super.read(b, off, len);
+        if (numBytesRead > 0) {
+            onBytesRead(numBytesRead);
+        }
+
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        mCheckpoint.check();
+        long numBytesSkipped = super.skip(n);
+        if (numBytesSkipped > 0) {
+            onBytesRead(numBytesSkipped);
+        }
+
+        return numBytesSkipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void onBytesRead(long numBytes) {
+        mReceivedBytes += numBytes;
+        mProgressCallback.call(new DownloadProgress(mTotalBytes, mReceivedBytes));
+    }
+}
@@ -1,19 +1,54 @@
 package com.marf.sparks.react;
 
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 public class FileUtils {
 
     private static final int WRITE_BUFFER_SIZE = 1024 * 8;
+    private static final int COPY_BUFFER_SIZE = 1024 * 64;
+    private static final int MAX_POOLED_COPY_BUFFERS = 4;
+
+    // Direct buffers are expensive to allocate, so the few needed at a time are reused across copies.
+    private static final ArrayDeque<ByteBuffer> sCopyBufferPool = new ArrayDeque<>();
+
+    private static ByteBuffer acquireCopyBuffer() {
+        synchronized (sCopyBufferPool) {
+            ByteBuffer buffer = sCopyBufferPool.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+    }
+
+    private static void releaseCopyBuffer(ByteBuffer buffer) {
+        synchronized (sCopyBufferPool) {
+            if (sCopyBufferPool.size() < MAX_POOLED_COPY_BUFFERS) {
+                sCopyBufferPool.push(buffer);
+            }
+        }
+    }
 
     public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
         File sourceDir = new File(sourceDirectoryPath);
@@ -28,29 +63,87 @@ public class FileUtils {
                         SparksUtils.appendPathComponent(sourceDirectoryPath, sourceFile.getName()),
                         SparksUtils.appendPathComponent(destinationDirectoryPath, sourceFile.getName()));
             } else {
-                File destFile = new File(destDir, sourceFile.getName());
-                FileInputStream fromFileStream = null;
-                BufferedInputStream fromBufferedStream = null;
-                FileOutputStream destStream = null;
-                byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+                copyFile(sourceFile, new File(destDir, sourceFile.getName()));
+            }
+        }
+    }
+
+    public static void copyFile(File sourceFile, File destFile) throws IOException {
+        copyFile(sourceFile, destFile, null);
+    }
+
+    // Copies the file, updating digest, if not null, with its contents along the way. An existing
+    // destFile is replaced rather than written over, as it may be a hard link to a file of another
+    // package.
+    public static void copyFile(File sourceFile, File destFile, MessageDigest digest) throws IOException {
+        FileInputStream fromFileStream = null;
+        FileOutputStream destStream = null;
+        try {
+            if (destFile.exists()) {
+                destFile.delete();
+            }
+
+            fromFileStream = new FileInputStream(sourceFile);
+            destStream = new FileOutputStream(destFile);
+            FileChannel sourceChannel = fromFileStream.getChannel();
+            FileChannel destChannel = destStream.getChannel();
+            if (digest == null) {
+                // Lets the kernel move the data without passing it through the Java heap.
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long bytesTransferred = sourceChannel.transferTo(position, size - position, destChannel);
+                    if (bytesTransferred <= 0) {
+                        break;
+                    }
+
+                    position += bytesTransferred;
+                }
+            } else {
+                ByteBuffer buffer = acquireCopyBuffer();
                 try {
-                    fromFileStream = new FileInputStream(sourceFile);
-                    fromBufferedStream = new BufferedInputStream(fromFileStream);
-                    destStream = new FileOutputStream(destFile);
-                    int bytesRead;
-                    while ((bytesRead = fromBufferedStream.read(buffer)) > 0) {
-                        destStream.write(buffer, 0, bytesRead);
+                    while (sourceChannel.read(buffer) > 0) {
+                        buffer.flip();
+                        digest.update(buffer);
+                        // digest.update consumed the buffer, so rewind it for the write.
+                        buffer.rewind();
+                        while (buffer.hasRemaining()) {
+                            destChannel.write(buffer);
+                        }
+
+                        buffer.clear();
                     }
                 } finally {
-                    try {
-                        if (fromFileStream != null) fromFileStream.close();
-                        if (fromBufferedStream != null) fromBufferedStream.close();
-                        if (destStream != null) destStream.close();
-                    } catch (IOException e) {
-                        throw new SparksUnknownException("Error closing IO resources.", e);
-                    }
+                    releaseCopyBuffer(buffer);
                 }
             }
+        } finally {
+            try {
+                if (fromFileStream != null) fromFileStream.close();
+                if (destStream != null) destStream.close();
+            } catch (IOException e) {
+                throw new SparksUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Hard links destFile to sourceFile, replacing any existing destFile. Returns false if the file
+    // system does not support it, in which case the file has to be copied instead.
+    public static boolean linkFile(File sourceFile, File destFile) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+
+        try {
+            Os.link(sourceFile.getAbsolutePath(), destFile.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            // E.g. EXDEV across file systems or EPERM on file systems without hard links.
+            return false;
         }
     }
 
@@ -86,6 +179,23 @@ public class FileUtils {
         }
     }
 
+    // Adds up the sizes of all files in file, or of file itself if it is not a folder.
+    public static long getSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File fileEntry : files) {
+                size += getSize(fileEntry);
+            }
+        }
+
+        return size;
+    }
+
     public static boolean fileAtPathExists(String filePath) {
         return new File(filePath).exists();
     }
@@ -97,9 +207,17 @@ public class FileUtils {
         }
 
         File newFilePath = new File(newFolderPath, newFileName);
-        if (!fileToMove.renameTo(newFilePath)) {
+        if (fileToMove.renameTo(newFilePath)) {
+            return;
+        }
+
+        // Renaming fails across file systems, e.g. with a documents directory on external storage.
+        try {
+            copyFile(fileToMove, newFilePath);
+            fileToMove.delete();
+        } catch (IOException e) {
             throw new SparksUnknownException("Unable to move file from " +
-                    fileToMove.getAbsolutePath() + " to " + newFilePath.getAbsolutePath() + ".");
+                    fileToMove.getAbsolutePath() + " to " + newFilePath.getAbsolutePath() + ".", e);
         }
     }
 
@@ -123,7 +241,7 @@ public class FileUtils {
         }
     }
 
-    private static String validateFileName(String fileName, File destinationFolder) throws IOException {
+    static String validateFileName(String fileName, File destinationFolder) throws IOException {
         String destinationFolderCanonicalPath = destinationFolder.getCanonicalPath() + File.separator;
 
         File file = new File(destinationFolderCanonicalPath, fileName);
@@ -137,13 +255,38 @@ public class FileUtils {
     }
 
     public static void unzipFile(File zipFile, String destination) throws IOException {
+        unzipFile(zipFile, destination, null);
+    }
+
+    public static void unzipFile(File zipFile, String destination, Map<String, String> fileHashes) throws IOException {
+        if (zipFile.length() >= SparksConstants.PARALLEL_UNZIP_MIN_SIZE && SparksZipExtractor.isSupported()) {
+            SparksZipExtractor.extract(zipFile, destination, fileHashes);
+            return;
+        }
+
         FileInputStream fileStream = null;
         BufferedInputStream bufferedStream = null;
-        ZipInputStream zipStream = null;
         try {
             fileStream = new FileInputStream(zipFile);
             bufferedStream = new BufferedInputStream(fileStream);
-            zipStream = new ZipInputStream(bufferedStream);
+            unzipStream(bufferedStream, destination, fileHashes);
+        } finally {
+            try {
+                if (bufferedStream != null) bufferedStream.close();
+                if (fileStream != null) fileStream.close();
+            } catch (IOException e) {
+                throw new SparksUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Extracts the zip archive read from the given stream, which is consumed to its end and closed.
+    // If fileHashes is not null, the SHA-256 hash of every extracted file is added to it, keyed by
+    // its path relative to the destination, as the file is being written.
+    public static void unzipStream(InputStream inputStream, String destination, Map<String, String> fileHashes) throws IOException {
+        ZipInputStream zipStream = null;
+        try {
+            zipStream = new ZipInputStream(inputStream);
             ZipEntry entry;
 
             File destinationFolder = new File(destination);
@@ -152,6 +295,7 @@ public class FileUtils {
             }
 
             destinationFolder.mkdirs();
+            String destinationFolderCanonicalPath = destinationFolder.getCanonicalPath() + File.separator;
 
             byte[] buffer = new byte[WRITE_BUFFER_SIZE];
             while ((entry = zipStream.getNextEntry()) != null) {
@@ -165,26 +309,37 @@ public class FileUtils {
                         parent.mkdirs();
                     }
 
+                    MessageDigest digest = fileHashes != null ? SparksUpdateUtils.getSha256Digest() : null;
                     FileOutputStream fout = new FileOutputStream(file);
                     try {
                         int numBytesRead;
                         while ((numBytesRead = zipStream.read(buffer)) != -1) {
                             fout.write(buffer, 0, numBytesRead);
+                            if (digest != null) {
+                                digest.update(buffer, 0, numBytesRead);
+                            }
                         }
                     } finally {
                         fout.close();
                     }
+
+                    if (digest != null) {
+                        String relativePath = fileName.substring(destinationFolderCanonicalPath.length()).replace(File.separatorChar, '/');
+                        fileHashes.put(relativePath, SparksUpdateUtils.toHexString(digest.digest()));
+                    }
                 }
                 long time = entry.getTime();
                 if (time > 0) {
                     file.setLastModified(time);
                 }
             }
+
+            // Read past the central directory as well, so that a stream that is being downloaded
+            // is received completely.
+            while (inputStream.read(buffer) != -1) ;
         } finally {
             try {
                 if (zipStream != null) zipStream.close();
-                if (bufferedStream != null) bufferedStream.close();
-                if (fileStream != null) fileStream.close();
             } catch (IOException e) {
                 throw new SparksUnknownException("Error closing IO resources.", e);
             }
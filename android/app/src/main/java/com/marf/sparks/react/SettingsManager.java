@@ -7,68 +7,140 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Keeps the failed and pending updates parsed in memory, so that checks such as isFailedHash do not
+// parse them on every call. They are stored in the state store of SparksUpdateManager, so that
+// changes to them can be committed together with the current package, e.g. on install. Changes that
+// have to be on disk before going on are committed, the others are applied.
 public class SettingsManager {
 
+    // Once exceeded, the updates that failed least recently are forgotten.
+    private static final int MAX_FAILED_UPDATES = 50;
+
     private SharedPreferences mSettings;
+    private SparksUpdateManager mUpdateManager;
 
-    public SettingsManager(Context applicationContext) {
+    // Parsed from mLoadedStateStore as of mLoadedVersion. Failed updates are keyed by package hash,
+    // in the order in which they last failed.
+    private SparksStateStore mLoadedStateStore;
+    private long mLoadedVersion;
+    private LinkedHashMap<String, JSONObject> mFailedUpdates;
+    private JSONObject mPendingUpdate;
+
+    public SettingsManager(Context applicationContext, SparksUpdateManager updateManager) {
         mSettings = applicationContext.getSharedPreferences(SparksConstants.CODE_PUSH_PREFERENCES, 0);
+        mUpdateManager = updateManager;
     }
 
-    public JSONArray getFailedUpdates() {
-        String failedUpdatesString = mSettings.getString(SparksConstants.FAILED_UPDATES_KEY, null);
-        if (failedUpdatesString == null) {
-            return new JSONArray();
+    private SparksStateStore getStateStore() {
+        SparksStateStore stateStore = mUpdateManager.getStateStore();
+        if (stateStore != mLoadedStateStore) {
+            importSettings(stateStore);
         }
 
-        try {
-            return new JSONArray(failedUpdatesString);
-        } catch (JSONException e) {
-            // Unrecognized data format, clear and replace with expected format.
-            JSONArray emptyArray = new JSONArray();
-            mSettings.edit().putString(SparksConstants.FAILED_UPDATES_KEY, emptyArray.toString()).commit();
-            return emptyArray;
-        }
+        return stateStore;
     }
 
-    public JSONObject getPendingUpdate() {
-        String pendingUpdateString = mSettings.getString(SparksConstants.PENDING_UPDATE_KEY, null);
-        if (pendingUpdateString == null) {
-            return null;
+    // Moves the settings over from SharedPreferences, where they were kept before the state store.
+    // The store records that they were imported, so that settings left behind in SharedPreferences
+    // are never imported again over newer ones. As with the status file, the move is one-way.
+    private void importSettings(SparksStateStore stateStore) {
+        String[] keys = new String[] { SparksConstants.FAILED_UPDATES_KEY, SparksConstants.PENDING_UPDATE_KEY, SparksConstants.LATEST_ROLLBACK_INFO_KEY };
+        boolean hasSettings = false;
+        for (String key : keys) {
+            hasSettings |= mSettings.contains(key);
         }
 
-        try {
-            return new JSONObject(pendingUpdateString);
-        } catch (JSONException e) {
-            // Should not happen.
-            SparksUtils.log("Unable to parse pending update metadata " + pendingUpdateString +
-                    " stored in SharedPreferences");
-            return null;
+        if (!hasSettings) {
+            return;
+        }
+
+        if (!stateStore.contains(SparksConstants.STATE_SETTINGS_IMPORTED_KEY)) {
+            SparksStateStore.Editor editor = stateStore.edit();
+            for (String key : keys) {
+                editor.putString(key, mSettings.getString(key, null));
+            }
+
+            editor.putString(SparksConstants.STATE_SETTINGS_IMPORTED_KEY, "true");
+            editor.commit();
         }
+
+        SharedPreferences.Editor settingsEditor = mSettings.edit();
+        for (String key : keys) {
+            settingsEditor.remove(key);
+        }
+
+        settingsEditor.apply();
     }
 
+    private void load() {
+        SparksStateStore stateStore = getStateStore();
+        // Read before the values, so that a commit in between only causes another load.
+        long version = stateStore.getVersion();
+        if (stateStore == mLoadedStateStore && version == mLoadedVersion) {
+            return;
+        }
 
-    public boolean isFailedHash(String packageHash) {
-        JSONArray failedUpdates = getFailedUpdates();
-        if (packageHash != null) {
-            for (int i = 0; i < failedUpdates.length(); i++) {
-                try {
+        mFailedUpdates = new LinkedHashMap<>();
+        String failedUpdatesString = stateStore.getString(SparksConstants.FAILED_UPDATES_KEY);
+        if (failedUpdatesString != null) {
+            try {
+                JSONArray failedUpdates = new JSONArray(failedUpdatesString);
+                for (int i = 0; i < failedUpdates.length(); i++) {
                     JSONObject failedPackage = failedUpdates.getJSONObject(i);
                     String failedPackageHash = failedPackage.getString(SparksConstants.PACKAGE_HASH_KEY);
-                    if (packageHash.equals(failedPackageHash)) {
-                        return true;
-                    }
-                } catch (JSONException e) {
-                    throw new SparksUnknownException("Unable to read failedUpdates data stored in SharedPreferences.", e);
+                    mFailedUpdates.remove(failedPackageHash);
+                    mFailedUpdates.put(failedPackageHash, failedPackage);
                 }
+            } catch (JSONException e) {
+                // Unrecognized data format, clear and replace with expected format.
+                mFailedUpdates.clear();
+                stateStore.edit().remove(SparksConstants.FAILED_UPDATES_KEY).apply();
+                version = stateStore.getVersion();
+            }
+        }
+
+        mPendingUpdate = null;
+        String pendingUpdateString = stateStore.getString(SparksConstants.PENDING_UPDATE_KEY);
+        if (pendingUpdateString != null) {
+            try {
+                mPendingUpdate = new JSONObject(pendingUpdateString);
+            } catch (JSONException e) {
+                // Should not happen.
+                SparksUtils.log("Unable to parse pending update metadata " + pendingUpdateString +
+                        " stored in the state store");
             }
         }
 
-        return false;
+        mLoadedStateStore = stateStore;
+        mLoadedVersion = version;
+    }
+
+    public synchronized JSONArray getFailedUpdates() {
+        load();
+        JSONArray failedUpdates = new JSONArray();
+        for (JSONObject failedPackage : mFailedUpdates.values()) {
+            failedUpdates.put(copyJsonObject(failedPackage));
+        }
+
+        return failedUpdates;
+    }
+
+    public synchronized JSONObject getPendingUpdate() {
+        load();
+        return mPendingUpdate != null ? copyJsonObject(mPendingUpdate) : null;
     }
 
-    public boolean isPendingUpdate(String packageHash) {
-        JSONObject pendingUpdate = getPendingUpdate();
+    public synchronized boolean isFailedHash(String packageHash) {
+        load();
+        return packageHash != null && mFailedUpdates.containsKey(packageHash);
+    }
+
+    public synchronized boolean isPendingUpdate(String packageHash) {
+        load();
+        JSONObject pendingUpdate = mPendingUpdate;
 
         try {
             return pendingUpdate != null &&
@@ -79,44 +151,61 @@ public class SettingsManager {
         }
     }
 
-    public void removeFailedUpdates() {
-        mSettings.edit().remove(SparksConstants.FAILED_UPDATES_KEY).commit();
+    public synchronized void removeFailedUpdates() {
+        getStateStore().edit().remove(SparksConstants.FAILED_UPDATES_KEY).apply();
+    }
+
+    public void removeFailedUpdates(SparksStateStore.Editor editor) {
+        editor.remove(SparksConstants.FAILED_UPDATES_KEY);
     }
 
-    public void removePendingUpdate() {
-        mSettings.edit().remove(SparksConstants.PENDING_UPDATE_KEY).commit();
+    public synchronized void removePendingUpdate() {
+        getStateStore().edit().remove(SparksConstants.PENDING_UPDATE_KEY).commit();
     }
 
-    public void saveFailedUpdate(JSONObject failedPackage) {
+    public void removePendingUpdate(SparksStateStore.Editor editor) {
+        editor.remove(SparksConstants.PENDING_UPDATE_KEY);
+    }
+
+    public synchronized void saveFailedUpdate(JSONObject failedPackage) {
+        SparksStateStore.Editor editor = getStateStore().edit();
+        saveFailedUpdate(failedPackage, editor);
+        editor.apply();
+    }
+
+    public synchronized void saveFailedUpdate(JSONObject failedPackage, SparksStateStore.Editor editor) {
+        String failedPackageHash;
         try {
-            if (isFailedHash(failedPackage.getString(SparksConstants.PACKAGE_HASH_KEY))) {
-                // Do not need to add the package if it is already in the failedUpdates.
-                return;
-            }
+            failedPackageHash = failedPackage.getString(SparksConstants.PACKAGE_HASH_KEY);
         } catch (JSONException e) {
             throw new SparksUnknownException("Unable to read package hash from package.", e);
         }
 
-        String failedUpdatesString = mSettings.getString(SparksConstants.FAILED_UPDATES_KEY, null);
-        JSONArray failedUpdates;
-        if (failedUpdatesString == null) {
-            failedUpdates = new JSONArray();
-        } else {
-            try {
-                failedUpdates = new JSONArray(failedUpdatesString);
-            } catch (JSONException e) {
-                // Should not happen.
-                throw new SparksMalformedDataException("Unable to parse failed updates information " +
-                        failedUpdatesString + " stored in SharedPreferences", e);
-            }
+        load();
+        if (mFailedUpdates.containsKey(failedPackageHash)) {
+            // Do not need to add the package if it is already in the failedUpdates.
+            return;
+        }
+
+        // The loaded failed updates only change once the editor is committed.
+        LinkedHashMap<String, JSONObject> failedUpdates = new LinkedHashMap<>(mFailedUpdates);
+        failedUpdates.put(failedPackageHash, copyJsonObject(failedPackage));
+        Iterator<String> leastRecentlyFailed = failedUpdates.keySet().iterator();
+        while (failedUpdates.size() > MAX_FAILED_UPDATES) {
+            leastRecentlyFailed.next();
+            leastRecentlyFailed.remove();
+        }
+
+        JSONArray failedUpdatesArray = new JSONArray();
+        for (JSONObject failedUpdate : failedUpdates.values()) {
+            failedUpdatesArray.put(failedUpdate);
         }
 
-        failedUpdates.put(failedPackage);
-        mSettings.edit().putString(SparksConstants.FAILED_UPDATES_KEY, failedUpdates.toString()).commit();
+        editor.putString(SparksConstants.FAILED_UPDATES_KEY, failedUpdatesArray.toString());
     }
 
     public JSONObject getLatestRollbackInfo() {
-        String latestRollbackInfoString = mSettings.getString(SparksConstants.LATEST_ROLLBACK_INFO_KEY, null);
+        String latestRollbackInfoString = getStateStore().getString(SparksConstants.LATEST_ROLLBACK_INFO_KEY);
         if (latestRollbackInfoString == null) {
             return null;
         }
@@ -126,12 +215,12 @@ public class SettingsManager {
         } catch (JSONException e) {
             // Should not happen.
             SparksUtils.log("Unable to parse latest rollback metadata " + latestRollbackInfoString +
-                    " stored in SharedPreferences");
+                    " stored in the state store");
             return null;
         }
     }
 
-    public void setLatestRollbackInfo(String packageHash) {
+    public synchronized void setLatestRollbackInfo(String packageHash) {
         JSONObject latestRollbackInfo = getLatestRollbackInfo();
         int count = 0;
 
@@ -152,22 +241,40 @@ public class SettingsManager {
             latestRollbackInfo.put(SparksConstants.LATEST_ROLLBACK_PACKAGE_HASH_KEY, packageHash);
             latestRollbackInfo.put(SparksConstants.LATEST_ROLLBACK_TIME_KEY, System.currentTimeMillis());
             latestRollbackInfo.put(SparksConstants.LATEST_ROLLBACK_COUNT_KEY, count + 1);
-            mSettings.edit().putString(SparksConstants.LATEST_ROLLBACK_INFO_KEY, latestRollbackInfo.toString()).commit();
+            getStateStore().edit().putString(SparksConstants.LATEST_ROLLBACK_INFO_KEY, latestRollbackInfo.toString()).apply();
         } catch (JSONException e) {
             throw new SparksUnknownException("Unable to save latest rollback info.", e);
         }
     }
 
-    public void savePendingUpdate(String packageHash, boolean isLoading) {
+    public synchronized void savePendingUpdate(String packageHash, boolean isLoading) {
+        SparksStateStore.Editor editor = getStateStore().edit();
+        savePendingUpdate(packageHash, isLoading, editor);
+        editor.commit();
+    }
+
+    public void savePendingUpdate(String packageHash, boolean isLoading, SparksStateStore.Editor editor) {
         JSONObject pendingUpdate = new JSONObject();
         try {
             pendingUpdate.put(SparksConstants.PENDING_UPDATE_HASH_KEY, packageHash);
             pendingUpdate.put(SparksConstants.PENDING_UPDATE_IS_LOADING_KEY, isLoading);
-            mSettings.edit().putString(SparksConstants.PENDING_UPDATE_KEY, pendingUpdate.toString()).commit();
         } catch (JSONException e) {
             // Should not happen.
             throw new SparksUnknownException("Unable to save pending update.", e);
         }
+
+        editor.putString(SparksConstants.PENDING_UPDATE_KEY, pendingUpdate.toString());
+    }
+
+    private static JSONObject copyJsonObject(JSONObject json) {
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            SparksUtils.setJSONValueForKey(copy, key, json.opt(key));
+        }
+
+        return copy;
     }
 
 }
@@ -31,6 +31,7 @@ public class Sparks implements ReactPackage {
     private static String sAppVersion = null;
 
     private boolean mDidUpdate = false;
+    private Long mBinaryResourcesModifiedTime;
 
     private String mAssetsBundleFileName;
 
@@ -38,6 +39,8 @@ public class Sparks implements ReactPackage {
     private SparksUpdateManager mUpdateManager;
     private SparksTelemetryManager mTelemetryManager;
     private SettingsManager mSettingsManager;
+    private final SparksExecutor mExecutor = new SparksExecutor();
+    private SparksRestartScheduler mRestartScheduler;
 
     // Config properties.
     private String mDeploymentKey;
@@ -63,13 +66,18 @@ public class Sparks implements ReactPackage {
     }
 
     public Sparks(String deploymentKey, Context context, boolean isDebugMode) {
+        this(deploymentKey, context, isDebugMode, (SparksBuilder) null);
+    }
+
+    private Sparks(String deploymentKey, Context context, boolean isDebugMode, SparksBuilder builder) {
         mContext = context.getApplicationContext();
 
-        mUpdateManager = new SparksUpdateManager(context.getFilesDir().getAbsolutePath());
+        mUpdateManager = new SparksUpdateManager(context.getFilesDir().getAbsolutePath(), mExecutor);
         mTelemetryManager = new SparksTelemetryManager(mContext);
         mDeploymentKey = deploymentKey;
         mIsDebugMode = isDebugMode;
-        mSettingsManager = new SettingsManager(mContext);
+        mSettingsManager = new SettingsManager(mContext, mUpdateManager);
+        mRestartScheduler = new SparksRestartScheduler(mExecutor, mSettingsManager);
 
         if (sAppVersion == null) {
             try {
@@ -88,8 +96,13 @@ public class Sparks implements ReactPackage {
         String serverUrlFromStrings = getCustomPropertyFromStringsIfExist("ServerUrl");
         if (serverUrlFromStrings != null) mServerUrl = serverUrlFromStrings;
 
+        if (builder != null) {
+            builder.configure(this);
+        }
+
         clearDebugCacheIfNeeded(false);
         initializeUpdateAfterRestart();
+        mUpdateManager.emptyTrash();
     }
 
     public Sparks(String deploymentKey, Context context, boolean isDebugMode, String serverUrl) {
@@ -104,7 +117,11 @@ public class Sparks implements ReactPackage {
     }
 
     public Sparks(String deploymentKey, Context context, boolean isDebugMode, String serverUrl, Integer publicKeyResourceDescriptor) {
-        this(deploymentKey, context, isDebugMode);
+        this(deploymentKey, context, isDebugMode, serverUrl, publicKeyResourceDescriptor, null);
+    }
+
+    Sparks(String deploymentKey, Context context, boolean isDebugMode, String serverUrl, Integer publicKeyResourceDescriptor, SparksBuilder builder) {
+        this(deploymentKey, context, isDebugMode, builder);
 
         if (publicKeyResourceDescriptor != null) {
             mPublicKey = getPublicKeyByResourceDescriptor(publicKeyResourceDescriptor);
@@ -178,6 +195,15 @@ public class Sparks implements ReactPackage {
     }
 
     long getBinaryResourcesModifiedTime() {
+        // The resources cannot change while the app is running.
+        if (mBinaryResourcesModifiedTime == null) {
+            mBinaryResourcesModifiedTime = readBinaryResourcesModifiedTime();
+        }
+
+        return mBinaryResourcesModifiedTime;
+    }
+
+    private long readBinaryResourcesModifiedTime() {
         try {
             String packageName = this.mContext.getPackageName();
             int SparksApkBuildTimeId = this.mContext.getResources().getIdentifier(SparksConstants.CODE_PUSH_APK_BUILD_TIME_KEY, "string", packageName);
@@ -209,6 +235,14 @@ public class Sparks implements ReactPackage {
         return getJSBundleFile(assetsBundleFileName);
     }
 
+    public SparksExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    SparksRestartScheduler getRestartScheduler() {
+        return mRestartScheduler;
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -233,6 +267,14 @@ public class Sparks implements ReactPackage {
         this.mAssetsBundleFileName = assetsBundleFileName;
         String binaryJsBundleUrl = SparksConstants.ASSETS_BUNDLE_PREFIX + assetsBundleFileName;
 
+        SparksBootRecord bootRecord = mUpdateManager.getBootRecord();
+        if (bootRecord != null && isBootRecordLatest(bootRecord)) {
+            String bootRecordBundlePath = mUpdateManager.getBootRecordBundlePath(bootRecord, this.mAssetsBundleFileName);
+            SparksUtils.logBundleUrl(bootRecordBundlePath);
+            sIsRunningBinaryVersion = false;
+            return bootRecordBundlePath;
+        }
+
         String packageFilePath = null;
         try {
             packageFilePath = mUpdateManager.getCurrentPackageBundlePath(this.mAssetsBundleFileName);
@@ -251,6 +293,11 @@ public class Sparks implements ReactPackage {
 
         JSONObject packageMetadata = this.mUpdateManager.getCurrentPackage();
         if (isPackageBundleLatest(packageMetadata)) {
+            if (bootRecord == null) {
+                // Packages installed before boot records existed get one now, once.
+                mUpdateManager.updateBootRecord();
+            }
+
             SparksUtils.logBundleUrl(packageFilePath);
             sIsRunningBinaryVersion = false;
             return packageFilePath;
@@ -304,7 +351,7 @@ public class Sparks implements ReactPackage {
                 }
             } catch (JSONException e) {
                 // Should not happen.
-                throw new SparksUnknownException("Unable to read pending update metadata stored in SharedPreferences", e);
+                throw new SparksUnknownException("Unable to read pending update metadata stored in the state store", e);
             }
         }
     }
@@ -338,6 +385,13 @@ public class Sparks implements ReactPackage {
         }
     }
 
+    // Same check as isPackageBundleLatest. Anything else, such as clearing updates after the binary
+    // changed, is left to the lookup through the package metadata.
+    private boolean isBootRecordLatest(SparksBootRecord bootRecord) {
+        return bootRecord.getBinaryModifiedTime() == this.getBinaryResourcesModifiedTime() &&
+                (isUsingTestConfiguration() || sAppVersion.equals(bootRecord.getAppVersion()));
+    }
+
     private boolean hasBinaryVersionChanged(JSONObject packageMetadata) {
         String packageAppVersion = packageMetadata.optString("appVersion", null);
         return !sAppVersion.equals(packageAppVersion);
@@ -353,9 +407,60 @@ public class Sparks implements ReactPackage {
 
     private void rollbackPackage() {
         JSONObject failedPackage = mUpdateManager.getCurrentPackage();
-        mSettingsManager.saveFailedUpdate(failedPackage);
-        mUpdateManager.rollbackPackage();
-        mSettingsManager.removePendingUpdate();
+        // The failed update and the rollback are committed together.
+        SparksStateStore.Editor editor = mUpdateManager.getStateStore().edit();
+        mSettingsManager.saveFailedUpdate(failedPackage, editor);
+        mSettingsManager.removePendingUpdate(editor);
+        mUpdateManager.rollbackPackage(editor);
+    }
+
+    // Downloads of large packages are split across up to this many connections. Defaults to 1,
+    // which keeps the single-stream download.
+    public void setMaxDownloadConnections(int maxDownloadConnections) {
+        mUpdateManager.setMaxDownloadConnections(maxDownloadConnections);
+    }
+
+    // How long a download waits to connect, and for the next bytes once connected, before the
+    // attempt fails and is retried. In milliseconds, defaulting to 15000 and 30000.
+    public void setDownloadTimeouts(int connectTimeout, int readTimeout) {
+        mUpdateManager.setDownloadConnectTimeout(connectTimeout);
+        mUpdateManager.setDownloadReadTimeout(readTimeout);
+    }
+
+    // A download attempt that receives fewer bytes per second than this over 10 seconds is treated
+    // as stalled and retried. Defaults to 1024, and 0 turns stall detection off.
+    public void setMinDownloadThroughput(long minDownloadThroughput) {
+        mUpdateManager.setMinDownloadThroughput(minDownloadThroughput);
+    }
+
+    // Failed download attempts are retried this many times, with exponential backoff, continuing
+    // from the bytes already written. Defaults to 3.
+    public void setMaxDownloadRetries(int maxDownloadRetries) {
+        mUpdateManager.setMaxDownloadRetries(maxDownloadRetries);
+    }
+
+    // Extracts zip updates while they are being downloaded instead of going through download.zip.
+    // Interrupted downloads then start over instead of resuming.
+    public void setStreamingExtractionEnabled(boolean isStreamingExtractionEnabled) {
+        mUpdateManager.setStreamingExtractionEnabled(isStreamingExtractionEnabled);
+    }
+
+    // Lets the server send updates gzip or deflate encoded. Encoded downloads are extracted while
+    // downloading and cannot be resumed or split across connections.
+    public void setCompressedTransferEnabled(boolean isCompressedTransferEnabled) {
+        mUpdateManager.setCompressedTransferEnabled(isCompressedTransferEnabled);
+    }
+
+    // Caps the bytes used by updates. Going over it, the previous package, which is only kept to
+    // roll back to, is removed. Defaults to 0, which means no quota.
+    public void setStorageQuota(long storageQuota) {
+        mUpdateManager.setStorageQuota(storageQuota);
+    }
+
+    // Number of packages kept besides the current one, to roll back to or to activate again
+    // without downloading them. Defaults to 1, the previous package.
+    public void setRetainedPackageCount(int retainedPackageCount) {
+        mUpdateManager.setRetainedPackageCount(retainedPackageCount);
     }
 
     public void setNeedToReportRollback(boolean needToReportRollback) {
@@ -376,9 +481,10 @@ public class Sparks implements ReactPackage {
     }
 
     public void clearUpdates() {
-        mUpdateManager.clearUpdates();
-        mSettingsManager.removePendingUpdate();
-        mSettingsManager.removeFailedUpdates();
+        SparksStateStore.Editor editor = mUpdateManager.getStateStore().edit();
+        mSettingsManager.removePendingUpdate(editor);
+        mSettingsManager.removeFailedUpdates(editor);
+        mUpdateManager.clearUpdates(editor);
     }
 
     public static void setReactInstanceHolder(ReactInstanceHolder reactInstanceHolder) {
@@ -0,0 +1,101 @@
+package com.marf.sparks.react;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Content-addressable store of package files, keyed by their SHA-256 hash. Package folders stay
+// complete directory trees, but each of their files is a hard link to the blob with its contents,
+// so identical files are only stored once across packages. As the package files hold their own
+// links, removing a blob never affects a package, it only loses the sharing.
+public class SparksBlobStore {
+
+    private final String mStorePath;
+
+    public SparksBlobStore(String storePath) {
+        mStorePath = storePath;
+    }
+
+    private File getBlobFile(String fileHash) {
+        return new File(SparksUtils.appendPathComponent(mStorePath, fileHash.substring(0, 2)), fileHash);
+    }
+
+    // Links every file of the package that has a hash in fileHashes into the store. A file whose
+    // blob already exists is replaced with a link to it, otherwise it becomes the blob. Files that
+    // cannot be linked are left as they are.
+    public void addPackageFiles(String packageFolderPath, Map<String, String> fileHashes) {
+        int sharedFileCount = 0;
+        for (Map.Entry<String, String> fileHash : fileHashes.entrySet()) {
+            File packageFile = new File(packageFolderPath, fileHash.getKey());
+            String hash = fileHash.getValue();
+            if (!packageFile.isFile() || hash == null || hash.length() < 2) {
+                continue;
+            }
+
+            File blobFile = getBlobFile(hash);
+            if (blobFile.isFile() && blobFile.length() == packageFile.length()) {
+                // Link under a temporary name first, so that the package file is only replaced once
+                // the link exists. A link left behind by a crash is deleted as garbage.
+                File linkFile = new File(blobFile.getPath() + "." + Thread.currentThread().getId() + ".link");
+                if (FileUtils.linkFile(blobFile, linkFile)) {
+                    if (linkFile.renameTo(packageFile)) {
+                        sharedFileCount++;
+                    }
+
+                    // Renaming is a no-op that keeps linkFile if the package file already was a link
+                    // to the blob, e.g. when carried over from the current package.
+                    if (linkFile.exists()) {
+                        linkFile.delete();
+                    }
+                }
+            } else {
+                File blobFolder = blobFile.getParentFile();
+                if (!blobFolder.exists()) {
+                    blobFolder.mkdirs();
+                }
+
+                FileUtils.linkFile(packageFile, blobFile);
+            }
+        }
+
+        SparksUtils.log("Shared " + sharedFileCount + " files of " + packageFolderPath + " with other packages.");
+    }
+
+    // Deletes the blobs that no longer back a file of any of the given packages, going by the file
+    // hash indexes of the packages.
+    public void collectGarbage(List<String> packageFolderPaths) {
+        HashMap<String, Integer> referenceCounts = new HashMap<>();
+        for (String packageFolderPath : packageFolderPaths) {
+            for (String hash : SparksUpdateUtils.getFileHashIndex(packageFolderPath).values()) {
+                Integer referenceCount = referenceCounts.get(hash);
+                referenceCounts.put(hash, referenceCount == null ? 1 : referenceCount + 1);
+            }
+        }
+
+        File[] blobFolders = new File(mStorePath).listFiles();
+        if (blobFolders == null) {
+            return;
+        }
+
+        int deletedBlobCount = 0;
+        for (File blobFolder : blobFolders) {
+            File[] blobFiles = blobFolder.listFiles();
+            if (blobFiles == null) {
+                continue;
+            }
+
+            for (File blobFile : blobFiles) {
+                if (!referenceCounts.containsKey(blobFile.getName()) && blobFile.delete()) {
+                    deletedBlobCount++;
+                }
+            }
+
+            if (blobFolder.list().length == 0) {
+                blobFolder.delete();
+            }
+        }
+
+        SparksUtils.log("Deleted " + deletedBlobCount + " unreferenced blobs.");
+    }
+}
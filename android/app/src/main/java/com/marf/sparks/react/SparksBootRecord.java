@@ -0,0 +1,128 @@
+package com.marf.sparks.react;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+// What the app needs at launch to find the bundle of the current package, written whenever the
+// current package changes so that startup does not have to parse the status and package files.
+// Layout: magic, format version, binary modified time, then the app version, package hash and
+// relative bundle path as modified UTF-8 strings, followed by a CRC32 of all of the above.
+public class SparksBootRecord {
+
+    private static final int MAGIC = 0x53504252;
+    private static final int FORMAT_VERSION = 1;
+    // Large enough for any record, so that it is read with a single call.
+    private static final int MAX_RECORD_SIZE = 4096;
+
+    private final long mBinaryModifiedTime;
+    private final String mAppVersion;
+    private final String mPackageHash;
+    private final String mRelativeBundlePath;
+
+    public SparksBootRecord(long binaryModifiedTime, String appVersion, String packageHash, String relativeBundlePath) {
+        mBinaryModifiedTime = binaryModifiedTime;
+        mAppVersion = appVersion;
+        mPackageHash = packageHash;
+        mRelativeBundlePath = relativeBundlePath;
+    }
+
+    public long getBinaryModifiedTime() {
+        return mBinaryModifiedTime;
+    }
+
+    public String getAppVersion() {
+        return mAppVersion;
+    }
+
+    public String getPackageHash() {
+        return mPackageHash;
+    }
+
+    // Empty for packages that consist of the bundle file alone.
+    public String getRelativeBundlePath() {
+        return mRelativeBundlePath;
+    }
+
+    // Returns null if there is no record or it is not intact.
+    public static SparksBootRecord read(File file) {
+        byte[] record = new byte[MAX_RECORD_SIZE];
+        int recordSize = 0;
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(file);
+            int numBytesRead;
+            while (recordSize < record.length && (numBytesRead = fin.read(record, recordSize, record.length - recordSize)) > 0) {
+                recordSize += numBytesRead;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (fin != null) fin.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (recordSize < 4) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, recordSize - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 0, recordSize));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            SparksBootRecord bootRecord = new SparksBootRecord(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF());
+            if (in.readInt() != (int) crc.getValue()) {
+                return null;
+            }
+
+            return bootRecord;
+        } catch (IOException e) {
+            // Truncated, e.g. by a crash while it was being written.
+            return null;
+        }
+    }
+
+    // Writes the record next to the file and renames it into place, so that readers never see a
+    // partially written record.
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(mBinaryModifiedTime);
+        out.writeUTF(mAppVersion);
+        out.writeUTF(mPackageHash);
+        out.writeUTF(mRelativeBundlePath);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(fout);
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to move boot record to " + file.getPath());
+        }
+    }
+}
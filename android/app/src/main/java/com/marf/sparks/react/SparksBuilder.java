@@ -9,6 +9,15 @@ public class SparksBuilder {
     private boolean mIsDebugMode;
     private String mServerUrl;
     private Integer mPublicKeyResourceDescriptor;
+    private int mMaxDownloadConnections = SparksConstants.DEFAULT_MAX_DOWNLOAD_CONNECTIONS;
+    private int mDownloadConnectTimeout = SparksConstants.DEFAULT_DOWNLOAD_CONNECT_TIMEOUT;
+    private int mDownloadReadTimeout = SparksConstants.DEFAULT_DOWNLOAD_READ_TIMEOUT;
+    private long mMinDownloadThroughput = SparksConstants.DEFAULT_MIN_DOWNLOAD_THROUGHPUT;
+    private int mMaxDownloadRetries = SparksConstants.DEFAULT_MAX_DOWNLOAD_RETRIES;
+    private boolean mIsStreamingExtractionEnabled;
+    private boolean mIsCompressedTransferEnabled;
+    private long mStorageQuota;
+    private int mRetainedPackageCount = SparksConstants.DEFAULT_RETAINED_PACKAGE_COUNT;
 
     public SparksBuilder(String deploymentKey, Context context) {
         this.mDeploymentKey = deploymentKey;
@@ -31,7 +40,61 @@ public class SparksBuilder {
         return this;
     }
 
+    public SparksBuilder setMaxDownloadConnections(int maxDownloadConnections) {
+        this.mMaxDownloadConnections = maxDownloadConnections;
+        return this;
+    }
+
+    public SparksBuilder setDownloadTimeouts(int connectTimeout, int readTimeout) {
+        this.mDownloadConnectTimeout = connectTimeout;
+        this.mDownloadReadTimeout = readTimeout;
+        return this;
+    }
+
+    public SparksBuilder setMinDownloadThroughput(long minDownloadThroughput) {
+        this.mMinDownloadThroughput = minDownloadThroughput;
+        return this;
+    }
+
+    public SparksBuilder setMaxDownloadRetries(int maxDownloadRetries) {
+        this.mMaxDownloadRetries = maxDownloadRetries;
+        return this;
+    }
+
+    public SparksBuilder setStreamingExtractionEnabled(boolean isStreamingExtractionEnabled) {
+        this.mIsStreamingExtractionEnabled = isStreamingExtractionEnabled;
+        return this;
+    }
+
+    public SparksBuilder setCompressedTransferEnabled(boolean isCompressedTransferEnabled) {
+        this.mIsCompressedTransferEnabled = isCompressedTransferEnabled;
+        return this;
+    }
+
+    public SparksBuilder setStorageQuota(long storageQuota) {
+        this.mStorageQuota = storageQuota;
+        return this;
+    }
+
+    public SparksBuilder setRetainedPackageCount(int retainedPackageCount) {
+        this.mRetainedPackageCount = retainedPackageCount;
+        return this;
+    }
+
     public Sparks build() {
-        return new Sparks(this.mDeploymentKey, this.mContext, this.mIsDebugMode, this.mServerUrl, this.mPublicKeyResourceDescriptor);
+        return new Sparks(this.mDeploymentKey, this.mContext, this.mIsDebugMode, this.mServerUrl, this.mPublicKeyResourceDescriptor, this);
+    }
+
+    // Called by the Sparks constructor before the update after a restart is initialized, as that
+    // may already roll back or collect garbage with these settings.
+    void configure(Sparks sparks) {
+        sparks.setMaxDownloadConnections(this.mMaxDownloadConnections);
+        sparks.setDownloadTimeouts(this.mDownloadConnectTimeout, this.mDownloadReadTimeout);
+        sparks.setMinDownloadThroughput(this.mMinDownloadThroughput);
+        sparks.setMaxDownloadRetries(this.mMaxDownloadRetries);
+        sparks.setStreamingExtractionEnabled(this.mIsStreamingExtractionEnabled);
+        sparks.setCompressedTransferEnabled(this.mIsCompressedTransferEnabled);
+        sparks.setStorageQuota(this.mStorageQuota);
+        sparks.setRetainedPackageCount(this.mRetainedPackageCount);
     }
 }
@@ -3,27 +3,54 @@ package com.marf.sparks.react;
 public class SparksConstants {
     public static final String ASSETS_BUNDLE_PREFIX = "assets://";
     public static final String BINARY_MODIFIED_TIME_KEY = "binaryModifiedTime";
+    public static final String BLOB_STORE_FOLDER_NAME = "blobs";
+    public static final String BOOT_RECORD_FILE_NAME = "boot.bin";
     public static final String CODE_PUSH_FOLDER_PREFIX = "CodePush";
     public static final String CODE_PUSH_HASH_FILE_NAME = "CodePushHash";
     public static final String CODE_PUSH_OLD_HASH_FILE_NAME = "CodePushHash.json";
     public static final String CODE_PUSH_PREFERENCES = "CodePush";
     public static final String CURRENT_PACKAGE_KEY = "currentPackage";
+    public static final int DEFAULT_DOWNLOAD_CONNECT_TIMEOUT = 15000;
+    public static final int DEFAULT_DOWNLOAD_READ_TIMEOUT = 30000;
     public static final String DEFAULT_JS_BUNDLE_NAME = "index.android.bundle";
+    public static final int DEFAULT_MAX_DOWNLOAD_CONNECTIONS = 1;
+    public static final int DEFAULT_MAX_DOWNLOAD_RETRIES = 3;
+    public static final long DEFAULT_MIN_DOWNLOAD_THROUGHPUT = 1024;
+    public static final int DEFAULT_RETAINED_PACKAGE_COUNT = 1;
     public static final String DIFF_MANIFEST_FILE_NAME = "hotcodepush.json";
     public static final int DOWNLOAD_BUFFER_SIZE = 1024 * 256;
+    public static final String DOWNLOAD_CANCELLED_ERROR_CODE = "E_DOWNLOAD_CANCELLED";
     public static final String DOWNLOAD_FILE_NAME = "download.zip";
+    public static final String DOWNLOAD_FOLDER_SUFFIX = ".download";
+    public static final String DOWNLOAD_JOURNAL_BYTES_WRITTEN_KEY = "bytesWritten";
+    public static final String DOWNLOAD_JOURNAL_ETAG_KEY = "etag";
+    public static final String DOWNLOAD_JOURNAL_FILE_NAME = "download.json";
+    public static final int DOWNLOAD_JOURNAL_INTERVAL = 1024 * 1024;
+    public static final String DOWNLOAD_JOURNAL_LAST_MODIFIED_KEY = "lastModified";
+    public static final long DOWNLOAD_MAX_RETRY_DELAY = 30000;
     public static final String DOWNLOAD_PROGRESS_EVENT_NAME = "CodePushDownloadProgress";
+    public static final long DOWNLOAD_RETRY_BASE_DELAY = 1000;
+    public static final long DOWNLOAD_STALL_WINDOW = 10000;
     public static final String DOWNLOAD_URL_KEY = "downloadUrl";
     public static final String FAILED_UPDATES_KEY = "CODE_PUSH_FAILED_UPDATES";
     public static final String PACKAGE_FILE_NAME = "app.json";
+    public static final String PACKAGE_HASH_INDEX_FILE_NAME = "hashindex.json";
     public static final String PACKAGE_HASH_KEY = "packageHash";
+    public static final long PARALLEL_UNZIP_MIN_SIZE = 2 * 1024 * 1024;
     public static final String PENDING_UPDATE_HASH_KEY = "hash";
     public static final String PENDING_UPDATE_IS_LOADING_KEY = "isLoading";
     public static final String PENDING_UPDATE_KEY = "CODE_PUSH_PENDING_UPDATE";
     public static final String PREVIOUS_PACKAGE_KEY = "previousPackage";
     public static final String REACT_NATIVE_LOG_TAG = "ReactNative";
     public static final String RELATIVE_BUNDLE_PATH_KEY = "bundlePath";
+    public static final String RETAINED_PACKAGES_KEY = "retainedPackages";
+    public static final long SEGMENTED_DOWNLOAD_MIN_SIZE = 4 * 1024 * 1024;
+    public static final String STATE_LOG_FILE_NAME = "state.log";
+    public static final String STATE_SETTINGS_IMPORTED_KEY = "settingsImported";
+    public static final String STATE_STATUS_FILE_IMPORTED_KEY = "statusFileImported";
     public static final String STATUS_FILE = "codepush.json";
+    public static final String STAGING_FOLDER_SUFFIX = ".staging";
+    public static final String TRASH_FOLDER_NAME = "trash";
     public static final String UNZIPPED_FOLDER_NAME = "unzipped";
     public static final String CODE_PUSH_APK_BUILD_TIME_KEY = "CODE_PUSH_APK_BUILD_TIME";
     public static final String BUNDLE_JWT_FILE = ".codepushrelease";
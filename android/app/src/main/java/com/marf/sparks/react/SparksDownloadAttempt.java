@@ -0,0 +1,110 @@
+package com.marf.sparks.react;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+// One attempt at transferring a package. Passes progress and checkpoints on to the download it
+// belongs to, stops the attempt if its throughput stays below the minimum for a whole
+// DOWNLOAD_STALL_WINDOW, and describes how it went for telemetry.
+class SparksDownloadAttempt implements DownloadProgressCallback, DownloadCheckpoint {
+
+    private final String mPackageHash;
+    private final int mAttemptNumber;
+    private final SparksDownloadFlight mDownloadFlight;
+    private final long mMinThroughput;
+    private final long mStartTime;
+
+    private long mTotalBytes = -1;
+    private long mReceivedBytes = -1;
+    private long mWindowStartTime;
+    private long mWindowBytes = 0;
+
+    SparksDownloadAttempt(String packageHash, int attemptNumber, SparksDownloadFlight downloadFlight, long minThroughput) {
+        mPackageHash = packageHash;
+        mAttemptNumber = attemptNumber;
+        mDownloadFlight = downloadFlight;
+        mMinThroughput = minThroughput;
+        mStartTime = System.currentTimeMillis();
+        mWindowStartTime = mStartTime;
+    }
+
+    @Override
+    public void call(DownloadProgress downloadProgress) {
+        synchronized (this) {
+            // The first update only tells where the attempt started, e.g. when resuming.
+            if (mReceivedBytes >= 0) {
+                mWindowBytes += Math.max(0, downloadProgress.getReceivedBytes() - mReceivedBytes);
+            }
+
+            mTotalBytes = downloadProgress.getTotalBytes();
+            mReceivedBytes = downloadProgress.getReceivedBytes();
+        }
+
+        mDownloadFlight.call(downloadProgress);
+    }
+
+    @Override
+    public void check() throws IOException {
+        mDownloadFlight.check();
+        if (mMinThroughput <= 0) {
+            return;
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long windowDuration = now - mWindowStartTime;
+            if (windowDuration < SparksConstants.DOWNLOAD_STALL_WINDOW) {
+                return;
+            }
+
+            long throughput = mWindowBytes * 1000 / windowDuration;
+            if (throughput < mMinThroughput) {
+                throw new SparksDownloadStalledException("Received " + throughput + " bytes/s over the last "
+                        + windowDuration + " ms, less than the minimum of " + mMinThroughput + " bytes/s.");
+            }
+
+            mWindowStartTime = now;
+            mWindowBytes = 0;
+        }
+    }
+
+    // A null failure means that the attempt succeeded. The retry delay is 0 if there is no retry.
+    synchronized JSONObject describe(Throwable failure, long retryDelay) {
+        String outcome;
+        if (failure == null) {
+            outcome = "succeeded";
+        } else if (failure instanceof SparksDownloadPausedException) {
+            outcome = "paused";
+        } else if (failure instanceof SparksDownloadCancelledException) {
+            outcome = "cancelled";
+        } else if (failure instanceof SparksDownloadStalledException) {
+            outcome = "stalled";
+        } else {
+            outcome = "failed";
+        }
+
+        JSONObject attempt = new JSONObject();
+        // As doubles, since the bridge has no 64-bit integers. Times are in milliseconds.
+        SparksUtils.setJSONValueForKey(attempt, SparksConstants.PACKAGE_HASH_KEY, mPackageHash);
+        SparksUtils.setJSONValueForKey(attempt, "attempt", mAttemptNumber);
+        SparksUtils.setJSONValueForKey(attempt, "startTime", (double) mStartTime);
+        SparksUtils.setJSONValueForKey(attempt, "duration", (double) (System.currentTimeMillis() - mStartTime));
+        SparksUtils.setJSONValueForKey(attempt, "receivedBytes", (double) Math.max(0, mReceivedBytes));
+        SparksUtils.setJSONValueForKey(attempt, "totalBytes", (double) mTotalBytes);
+        SparksUtils.setJSONValueForKey(attempt, "outcome", outcome);
+        if (failure != null) {
+            SparksUtils.setJSONValueForKey(attempt, "error", failure.getMessage());
+        }
+
+        if (failure instanceof SparksHttpException) {
+            SparksUtils.setJSONValueForKey(attempt, "responseCode", ((SparksHttpException) failure).getResponseCode());
+        }
+
+        if (retryDelay > 0) {
+            SparksUtils.setJSONValueForKey(attempt, "retryDelay", (double) retryDelay);
+        }
+
+        return attempt;
+    }
+}
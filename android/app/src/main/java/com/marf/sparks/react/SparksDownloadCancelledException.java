@@ -0,0 +1,12 @@
+package com.marf.sparks.react;
+
+import java.io.IOException;
+
+// Thrown when a download is cancelled, e.g. by cancelDownload. Rejected to JS with its own error
+// code, so that it can be told apart from a failed download.
+class SparksDownloadCancelledException extends IOException {
+
+    public SparksDownloadCancelledException(String message) {
+        super(message);
+    }
+}
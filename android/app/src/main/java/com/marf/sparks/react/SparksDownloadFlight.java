@@ -0,0 +1,147 @@
+package com.marf.sparks.react;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+// A download in progress that later requests for the same package join instead of downloading it
+// again. Every request gets the progress of the shared download, and the same outcome, without a
+// thread waiting for it. The download can be paused, resumed and cancelled, which takes effect at
+// its next read. While paused or waiting to retry, it does not hold a thread either.
+class SparksDownloadFlight implements DownloadProgressCallback, DownloadCheckpoint {
+
+    private enum State {
+        RUNNING,
+        PAUSED,
+        CANCELLED
+    }
+
+    private final ArrayList<DownloadProgressCallback> mProgressCallbacks = new ArrayList<>();
+    private final ArrayList<DownloadCompletionCallback> mCompletionCallbacks = new ArrayList<>();
+    private DownloadProgress mLatestProgress;
+    private boolean mIsCompleted = false;
+    private Throwable mFailure;
+    private State mState = State.RUNNING;
+    private Runnable mSuspendedDownload;
+
+    // Also reports the progress so far right away, so that a request that joins late does not
+    // have to wait for the next update.
+    void addProgressCallback(DownloadProgressCallback progressCallback) {
+        DownloadProgress latestProgress;
+        synchronized (this) {
+            mProgressCallbacks.add(progressCallback);
+            latestProgress = mLatestProgress;
+        }
+
+        if (latestProgress != null) {
+            progressCallback.call(latestProgress);
+        }
+    }
+
+    @Override
+    public void call(DownloadProgress downloadProgress) {
+        ArrayList<DownloadProgressCallback> progressCallbacks;
+        synchronized (this) {
+            mLatestProgress = downloadProgress;
+            progressCallbacks = new ArrayList<>(mProgressCallbacks);
+        }
+
+        for (DownloadProgressCallback progressCallback : progressCallbacks) {
+            progressCallback.call(downloadProgress);
+        }
+    }
+
+    // Returns whether the download is paused now.
+    synchronized boolean pause() {
+        if (mState == State.RUNNING) {
+            mState = State.PAUSED;
+        }
+
+        return mState == State.PAUSED;
+    }
+
+    // Returns whether the download was paused.
+    synchronized boolean resume() {
+        if (mState != State.PAUSED) {
+            return false;
+        }
+
+        mState = State.RUNNING;
+        return true;
+    }
+
+    synchronized void cancel() {
+        mState = State.CANCELLED;
+    }
+
+    @Override
+    public synchronized void check() throws IOException {
+        if (mState == State.CANCELLED) {
+            throw new SparksDownloadCancelledException("The download was cancelled.");
+        } else if (mState == State.PAUSED) {
+            throw new SparksDownloadPausedException("The download was paused.");
+        }
+    }
+
+    // Called by a download that stopped because it was paused, with what runs it again. Returns
+    // whether the download should give up its thread, or go on since it was resumed or cancelled
+    // in the meantime.
+    synchronized boolean suspend(Runnable suspendedDownload) {
+        if (mState != State.PAUSED) {
+            return false;
+        }
+
+        mSuspendedDownload = suspendedDownload;
+        return true;
+    }
+
+    // Called by a failed download that gives up its thread until its next attempt is due, with
+    // what runs it again. Returns false if the download was cancelled in the meantime, in which
+    // case it should go on to clean up instead.
+    synchronized boolean suspendForRetry(Runnable suspendedDownload) {
+        if (mState == State.CANCELLED) {
+            return false;
+        }
+
+        mSuspendedDownload = suspendedDownload;
+        return true;
+    }
+
+    // Returns what runs the download again if it gave up its thread, only once, or null. Whoever
+    // gets it first, of a resume, a cancel or a retry that is due, runs the download again.
+    synchronized Runnable takeSuspendedDownload() {
+        Runnable suspendedDownload = mSuspendedDownload;
+        mSuspendedDownload = null;
+        return suspendedDownload;
+    }
+
+    // Called right away if the download is already complete, e.g. for a request that found the
+    // download just before it completed.
+    void addCompletionCallback(DownloadCompletionCallback completionCallback) {
+        Throwable failure;
+        synchronized (this) {
+            if (!mIsCompleted) {
+                mCompletionCallbacks.add(completionCallback);
+                return;
+            }
+
+            failure = mFailure;
+        }
+
+        completionCallback.call(failure);
+    }
+
+    // A null failure means that the download succeeded.
+    void complete(Throwable failure) {
+        ArrayList<DownloadCompletionCallback> completionCallbacks;
+        synchronized (this) {
+            mIsCompleted = true;
+            mFailure = failure;
+            completionCallbacks = new ArrayList<>(mCompletionCallbacks);
+            mCompletionCallbacks.clear();
+        }
+
+        for (DownloadCompletionCallback completionCallback : completionCallbacks) {
+            completionCallback.call(failure);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.marf.sparks.react;
+
+import java.io.IOException;
+
+// Stops the transfer of a download that was paused. What was written so far is kept, so that the
+// download continues from there once it is resumed.
+class SparksDownloadPausedException extends IOException {
+
+    public SparksDownloadPausedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.marf.sparks.react;
+
+import java.io.IOException;
+
+// Thrown when a download receives less than the minimum throughput for too long, so that it is
+// retried instead of trickling along, e.g. from a stalled CDN edge.
+class SparksDownloadStalledException extends IOException {
+
+    public SparksDownloadStalledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,144 @@
+package com.marf.sparks.react;
+
+import android.os.Process;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the background work of the native module on threads owned by Sparks, instead of sharing
+// the AsyncTask pool with the host app. Work is split into two lanes: the state lane runs one
+// task at a time in submission order, so that e.g. reading the update metadata never overlaps an
+// install, and the I/O lane runs a few downloads or disk scans in parallel.
+public class SparksExecutor {
+
+    private static final int IO_THREAD_COUNT = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Lane mStateLane;
+    private final Lane mIoLane;
+    // Only hands delayed tasks over to the I/O lane once they are due.
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    public SparksExecutor() {
+        // State tasks are short and a promise is waiting on each of them, so they are scheduled
+        // slightly ahead of downloads.
+        mStateLane = new Lane("SparksState", 1, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        mIoLane = new Lane("SparksIO", IO_THREAD_COUNT, Process.THREAD_PRIORITY_BACKGROUND);
+        mTimer = new ScheduledThreadPoolExecutor(1, newThreadFactory("SparksTimer", Process.THREAD_PRIORITY_BACKGROUND));
+        mTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    // For tasks that read or change the install state.
+    public void executeStateTask(Runnable task) {
+        mStateLane.execute(task);
+    }
+
+    // For tasks that mostly wait on the network or the disk.
+    public void executeIoTask(Runnable task) {
+        mIoLane.execute(task);
+    }
+
+    // Runs the task on the I/O lane after the delay, in milliseconds, without holding a lane
+    // thread meanwhile.
+    public void executeIoTaskDelayed(final Runnable task, long delay) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                executeIoTask(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public JSONObject getMetrics() {
+        JSONObject metrics = new JSONObject();
+        SparksUtils.setJSONValueForKey(metrics, "state", mStateLane.getMetrics());
+        SparksUtils.setJSONValueForKey(metrics, "io", mIoLane.getMetrics());
+        return metrics;
+    }
+
+    // Names the threads name-N and runs them as daemons at the given priority. Also used by the
+    // short-lived pools that split up a single download, extraction or hash, which cannot run on
+    // the lanes: they are waited on from an I/O task, and could deadlock a full lane.
+    static ThreadFactory newThreadFactory(final String name, final int threadPriority) {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        runnable.run();
+                    }
+                }, name + "-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static class Lane {
+
+        private final ThreadPoolExecutor mExecutor;
+
+        private long mCompletedCount = 0;
+        private long mTotalWaitTime = 0;
+        private long mMaxWaitTime = 0;
+        private long mTotalRunTime = 0;
+        private long mMaxRunTime = 0;
+
+        Lane(String name, int threadCount, int threadPriority) {
+            mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), newThreadFactory(name, threadPriority));
+            // Idle lanes do not keep any threads around.
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        void execute(final Runnable task) {
+            final long queuedTime = System.nanoTime();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startTime = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        record(startTime - queuedTime, System.nanoTime() - startTime);
+                    }
+                }
+            });
+        }
+
+        private synchronized void record(long waitTime, long runTime) {
+            mCompletedCount++;
+            mTotalWaitTime += waitTime;
+            mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+            mTotalRunTime += runTime;
+            mMaxRunTime = Math.max(mMaxRunTime, runTime);
+        }
+
+        synchronized JSONObject getMetrics() {
+            JSONObject metrics = new JSONObject();
+            // As doubles, since the bridge has no 64-bit integers. Times are in milliseconds.
+            SparksUtils.setJSONValueForKey(metrics, "queuedTasks", (double) mExecutor.getQueue().size());
+            SparksUtils.setJSONValueForKey(metrics, "activeTasks", (double) mExecutor.getActiveCount());
+            SparksUtils.setJSONValueForKey(metrics, "completedTasks", (double) mCompletedCount);
+            SparksUtils.setJSONValueForKey(metrics, "averageWaitTime", toMillis(mCompletedCount > 0 ? mTotalWaitTime / mCompletedCount : 0));
+            SparksUtils.setJSONValueForKey(metrics, "maxWaitTime", toMillis(mMaxWaitTime));
+            SparksUtils.setJSONValueForKey(metrics, "averageRunTime", toMillis(mCompletedCount > 0 ? mTotalRunTime / mCompletedCount : 0));
+            SparksUtils.setJSONValueForKey(metrics, "maxRunTime", toMillis(mMaxRunTime));
+            return metrics;
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.marf.sparks.react;
+
+import java.io.IOException;
+
+// Thrown when the server answers a download request with an error status. Keeps the status and
+// the delay asked for by a Retry-After header, if there was one, to decide whether and when to
+// retry.
+class SparksHttpException extends IOException {
+
+    private final int mResponseCode;
+    private final long mRetryAfter;
+
+    public SparksHttpException(int responseCode, long retryAfter, String message) {
+        super(message);
+        mResponseCode = responseCode;
+        mRetryAfter = retryAfter;
+    }
+
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    // In milliseconds, or -1 if the server did not say.
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    // Timeouts, throttling and server errors can go away by themselves, other client errors not.
+    public boolean isRetryable() {
+        return mResponseCode == 408 || mResponseCode == 429 || mResponseCode >= 500;
+    }
+}
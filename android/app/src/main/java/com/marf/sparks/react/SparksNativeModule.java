@@ -2,7 +2,6 @@ package com.marf.sparks.react;
 
 import android.app.Activity;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
@@ -29,7 +28,6 @@ import com.facebook.react.devsupport.interfaces.DevSupportManager;
 import com.facebook.react.modules.core.ChoreographerCompat;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.modules.core.ReactChoreographer;
-import com.facebook.react.modules.debug.interfaces.DeveloperSettings;
 import com.facebook.react.runtime.ReactHostDelegate;
 import com.facebook.react.runtime.ReactHostImpl;
 
@@ -39,8 +37,6 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -59,9 +55,9 @@ public class SparksNativeModule extends BaseJavaModule {
     private SparksTelemetryManager mTelemetryManager;
     private SparksUpdateManager mUpdateManager;
 
-    private boolean _allowed = true;
-    private boolean _restartInProgress = false;
-    private ArrayList<Boolean> _restartQueue = new ArrayList<>();
+    private SparksRestartScheduler mRestartScheduler;
+    private SparksReloadAdapter mReloadAdapter;
+    private DownloadProgress mLastDispatchedDownloadProgress = null;
 
     public SparksNativeModule(ReactApplicationContext reactContext, Sparks Sparks, SparksUpdateManager SparksUpdateManager, SparksTelemetryManager SparksTelemetryManager, SettingsManager settingsManager) {
         super(reactContext);
@@ -70,6 +66,14 @@ public class SparksNativeModule extends BaseJavaModule {
         mSettingsManager = settingsManager;
         mTelemetryManager = SparksTelemetryManager;
         mUpdateManager = SparksUpdateManager;
+        mReloadAdapter = SparksReloadAdapter.getInstance();
+        mRestartScheduler = mSparks.getRestartScheduler();
+        mRestartScheduler.attach(new SparksRestartScheduler.Reloader() {
+            @Override
+            public boolean reload() {
+                return loadBundle();
+            }
+        });
 
         // Initialize module state while we have a reference to the current context.
         mBinaryContentsHash = SparksUpdateUtils.getHashForBinaryContents(reactContext, mSparks.isDebugMode());
@@ -103,12 +107,13 @@ public class SparksNativeModule extends BaseJavaModule {
         return "Sparks";
     }
 
-    private void loadBundleLegacy() {
+    // Returns whether the Activity is being recreated.
+    private boolean loadBundleLegacy() {
         final Activity currentActivity = getReactApplicationContext().getCurrentActivity();
         if (currentActivity == null) {
             // The currentActivity can be null if it is backgrounded / destroyed, so we simply
             // no-op to prevent any null pointer exceptions.
-            return;
+            return false;
         }
         mSparks.invalidateCurrentInstance();
 
@@ -118,10 +123,9 @@ public class SparksNativeModule extends BaseJavaModule {
                 currentActivity.recreate();
             }
         });
+        return true;
     }
 
-    // Use reflection to find and set the appropriate fields on ReactInstanceManager. See #556 for a proposal for a less brittle way
-    // to approach this.
     private void setJSBundle(ReactInstanceManager instanceManager, String latestJSBundleFile) throws IllegalAccessException {
         try {
             JSBundleLoader latestJSBundleLoader;
@@ -131,17 +135,14 @@ public class SparksNativeModule extends BaseJavaModule {
                 latestJSBundleLoader = JSBundleLoader.createFileLoader(latestJSBundleFile);
             }
 
-            Field bundleLoaderField = instanceManager.getClass().getDeclaredField("mBundleLoader");
-            bundleLoaderField.setAccessible(true);
-            bundleLoaderField.set(instanceManager, latestJSBundleLoader);
+            mReloadAdapter.setJSBundleLoader(instanceManager, latestJSBundleLoader);
         } catch (Exception e) {
             SparksUtils.log("Unable to set JSBundle of ReactInstanceManager - Sparks may not support this version of React Native");
+            mReloadAdapter.fallBackToActivityRecreation();
             throw new IllegalAccessException("Could not setJSBundle");
         }
     }
 
-    // Use reflection to find and set the appropriate fields on ReactHostDelegate. See #556 for a proposal for a less brittle way
-    // to approach this.
     private void setJSBundle(ReactHostDelegate reactHostDelegate, String latestJSBundleFile) throws IllegalAccessException {
         try {
             JSBundleLoader latestJSBundleLoader;
@@ -151,16 +152,16 @@ public class SparksNativeModule extends BaseJavaModule {
                 latestJSBundleLoader = JSBundleLoader.createFileLoader(latestJSBundleFile);
             }
 
-            Field bundleLoaderField = reactHostDelegate.getClass().getDeclaredField("jsBundleLoader");
-            bundleLoaderField.setAccessible(true);
-            bundleLoaderField.set(reactHostDelegate, latestJSBundleLoader);
+            mReloadAdapter.setJSBundleLoader(reactHostDelegate, latestJSBundleLoader);
         } catch (Exception e) {
             SparksUtils.log("Unable to set JSBundle of ReactHostDelegate - Sparks may not support this version of React Native");
+            mReloadAdapter.fallBackToActivityRecreation();
             throw new IllegalAccessException("Could not setJSBundle");
         }
     }
 
-    private void loadBundle() {
+    // Returns whether a reload was started.
+    private boolean loadBundle() {
         clearLifecycleEventListener();
 
         if (BuildConfig.IS_NEW_ARCHITECTURE_ENABLED) {
@@ -178,12 +179,16 @@ public class SparksNativeModule extends BaseJavaModule {
                 mSparks.clearDebugCacheIfNeeded(false);
             }
 
+            if (mReloadAdapter.getStrategy() == SparksReloadAdapter.Strategy.RECREATE_ACTIVITY) {
+                return loadBundleLegacy();
+            }
+
             try {
                 // #1) Get the ReactHost instance, which is what includes the
                 //     logic to reload the current React context.
                 final ReactHost reactHost = resolveReactHost();
                 if (reactHost == null) {
-                    return;
+                    return false;
                 }
 
                 String latestJSBundleFile = mSparks.getJSBundleFileInternal(mSparks.getAssetsBundleFileName());
@@ -195,17 +200,18 @@ public class SparksNativeModule extends BaseJavaModule {
                 try {
                     reactHost.reload("Sparks triggers reload");
                     mSparks.initializeUpdateAfterRestart();
+                    return true;
                 } catch (Exception e) {
                     // The recreation method threw an unknown exception
                     // so just simply fallback to restarting the Activity (if it exists)
-                    loadBundleLegacy();
+                    return loadBundleLegacy();
                 }
 
             } catch (Exception e) {
                 // Our reflection logic failed somewhere
                 // so fall back to restarting the Activity (if it exists)
                 SparksUtils.log("Failed to load the bundle, falling back to restarting the Activity (if it exists). " + e.getMessage());
-                loadBundleLegacy();
+                return loadBundleLegacy();
             }
         } else {
             try {
@@ -222,12 +228,16 @@ public class SparksNativeModule extends BaseJavaModule {
                 mSparks.clearDebugCacheIfNeeded(false);
             }
 
+            if (mReloadAdapter.getStrategy() == SparksReloadAdapter.Strategy.RECREATE_ACTIVITY) {
+                return loadBundleLegacy();
+            }
+
             try {
                 // #1) Get the ReactInstanceManager instance, which is what includes the
                 //     logic to reload the current React context.
                 final ReactInstanceManager instanceManager = resolveInstanceManager();
                 if (instanceManager == null) {
-                    return;
+                    return false;
                 }
 
                 String latestJSBundleFile = mSparks.getJSBundleFileInternal(mSparks.getAssetsBundleFileName());
@@ -250,16 +260,19 @@ public class SparksNativeModule extends BaseJavaModule {
                         } catch (Exception e) {
                             // The recreation method threw an unknown exception
                             // so just simply fallback to restarting the Activity (if it exists)
-                            loadBundleLegacy();
+                            if (!loadBundleLegacy()) {
+                                mRestartScheduler.onReloadFailed();
+                            }
                         }
                     }
                 });
+                return true;
 
             } catch (Exception e) {
                 // Our reflection logic failed somewhere
                 // so fall back to restarting the Activity (if it exists)
                 SparksUtils.log("Failed to load the bundle, falling back to restarting the Activity (if it exists). " + e.getMessage());
-                loadBundleLegacy();
+                return loadBundleLegacy();
             }
         }
     }
@@ -269,19 +282,7 @@ public class SparksNativeModule extends BaseJavaModule {
             return false;
         }
 
-        DeveloperSettings devSettings = devSupportManager.getDevSettings();
-        Method[] methods = devSettings.getClass().getMethods();
-        for (Method m : methods) {
-            if (m.getName().equals("isReloadOnJSChangeEnabled")) {
-                try {
-                    return (boolean) m.invoke(devSettings);
-                } catch (Exception x) {
-                    return false;
-                }
-            }
-        }
-
-        return false;
+        return mReloadAdapter.isReloadOnJSChangeEnabled(devSupportManager.getDevSettings());
     }
 
     private void resetReactRootViews(ReactInstanceManager instanceManager) throws NoSuchFieldException, IllegalAccessException {
@@ -337,62 +338,40 @@ public class SparksNativeModule extends BaseJavaModule {
     }
 
     private void restartAppInternal(boolean onlyIfUpdateIsPending) {
-        if (this._restartInProgress) {
-            SparksUtils.log("Restart request queued until the current restart is completed");
-            this._restartQueue.add(onlyIfUpdateIsPending);
-            return;
-        } else if (!this._allowed) {
-            SparksUtils.log("Restart request queued until restarts are re-allowed");
-            this._restartQueue.add(onlyIfUpdateIsPending);
-            return;
-        }
-
-        this._restartInProgress = true;
-        if (!onlyIfUpdateIsPending || mSettingsManager.isPendingUpdate(null)) {
-            loadBundle();
-            SparksUtils.log("Restarting app");
-            return;
-        }
-
-        this._restartInProgress = false;
-        if (this._restartQueue.size() > 0) {
-            boolean buf = this._restartQueue.get(0);
-            this._restartQueue.remove(0);
-            this.restartAppInternal(buf);
-        }
+        mRestartScheduler.requestRestart(onlyIfUpdateIsPending);
     }
 
     @ReactMethod
     public void allow(Promise promise) {
-        SparksUtils.log("Re-allowing restarts");
-        this._allowed = true;
-
-        if (_restartQueue.size() > 0) {
-            SparksUtils.log("Executing pending restart");
-            boolean buf = this._restartQueue.get(0);
-            this._restartQueue.remove(0);
-            this.restartAppInternal(buf);
-        }
-
+        mRestartScheduler.allow();
         promise.resolve(null);
         return;
     }
 
     @ReactMethod
     public void clearPendingRestart(Promise promise) {
-        this._restartQueue.clear();
+        mRestartScheduler.clearPendingRestart();
         promise.resolve(null);
         return;
     }
 
     @ReactMethod
     public void disallow(Promise promise) {
-        SparksUtils.log("Disallowing restarts");
-        this._allowed = false;
+        mRestartScheduler.disallow();
         promise.resolve(null);
         return;
     }
 
+    @ReactMethod
+    public void getRestartMetrics(Promise promise) {
+        try {
+            promise.resolve(SparksUtils.convertJsonObjectToWritable(mRestartScheduler.getMetrics()));
+        } catch (SparksUnknownException e) {
+            SparksUtils.log(e);
+            promise.reject(e);
+        }
+    }
+
     @ReactMethod
     public void restartApp(boolean onlyIfUpdateIsPending, Promise promise) {
         try {
@@ -406,74 +385,116 @@ public class SparksNativeModule extends BaseJavaModule {
 
     @ReactMethod
     public void downloadUpdate(final ReadableMap updatePackage, final boolean notifyProgress, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    JSONObject mutableUpdatePackage = SparksUtils.convertReadableToJsonObject(updatePackage);
-                    SparksUtils.setJSONValueForKey(mutableUpdatePackage, SparksConstants.BINARY_MODIFIED_TIME_KEY, "" + mSparks.getBinaryResourcesModifiedTime());
-                    mUpdateManager.downloadPackage(mutableUpdatePackage, mSparks.getAssetsBundleFileName(), new DownloadProgressCallback() {
-                        private boolean hasScheduledNextFrame = false;
-                        private DownloadProgress latestDownloadProgress = null;
-
-                        @Override
-                        public void call(DownloadProgress downloadProgress) {
-                            if (!notifyProgress) {
-                                return;
-                            }
+        // Returns right away, as the download runs on the I/O lane.
+        try {
+            JSONObject mutableUpdatePackage = SparksUtils.convertReadableToJsonObject(updatePackage);
+            SparksUtils.setJSONValueForKey(mutableUpdatePackage, SparksConstants.BINARY_MODIFIED_TIME_KEY, "" + mSparks.getBinaryResourcesModifiedTime());
+            mUpdateManager.downloadPackage(mutableUpdatePackage, mSparks.getAssetsBundleFileName(), new DownloadProgressCallback() {
+                private boolean hasScheduledNextFrame = false;
+                private DownloadProgress latestDownloadProgress = null;
+
+                @Override
+                public void call(DownloadProgress downloadProgress) {
+                    if (!notifyProgress) {
+                        return;
+                    }
 
-                            latestDownloadProgress = downloadProgress;
-                            // If the download is completed, synchronously send the last event.
-                            if (latestDownloadProgress.isCompleted()) {
-                                dispatchDownloadProgressEvent();
-                                return;
-                            }
+                    latestDownloadProgress = downloadProgress;
+                    // If the download is completed, synchronously send the last event.
+                    if (latestDownloadProgress.isCompleted()) {
+                        dispatchDownloadProgressEvent();
+                        return;
+                    }
 
-                            if (hasScheduledNextFrame) {
-                                return;
-                            }
+                    if (hasScheduledNextFrame) {
+                        return;
+                    }
 
-                            hasScheduledNextFrame = true;
-                            getReactApplicationContext().runOnUiQueueThread(new Runnable() {
+                    hasScheduledNextFrame = true;
+                    getReactApplicationContext().runOnUiQueueThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, new ChoreographerCompat.FrameCallback() {
                                 @Override
-                                public void run() {
-                                    ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, new ChoreographerCompat.FrameCallback() {
-                                        @Override
-                                        public void doFrame(long frameTimeNanos) {
-                                            if (!latestDownloadProgress.isCompleted()) {
-                                                dispatchDownloadProgressEvent();
-                                            }
-
-                                            hasScheduledNextFrame = false;
-                                        }
-                                    });
+                                public void doFrame(long frameTimeNanos) {
+                                    if (!latestDownloadProgress.isCompleted()) {
+                                        dispatchDownloadProgressEvent();
+                                    }
+
+                                    hasScheduledNextFrame = false;
                                 }
                             });
                         }
+                    });
+                }
+
+                public void dispatchDownloadProgressEvent() {
+                    if (!markDownloadProgressDispatched(latestDownloadProgress)) {
+                        return;
+                    }
 
-                        public void dispatchDownloadProgressEvent() {
-                            getReactApplicationContext()
-                                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                                    .emit(SparksConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
+                    getReactApplicationContext()
+                            .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                            .emit(SparksConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
+                }
+            }, new DownloadCompletionCallback() {
+                // Called on the I/O lane once the download completes, also for requests that
+                // joined a download already in progress.
+                @Override
+                public void call(Throwable failure) {
+                    try {
+                        if (failure != null) {
+                            throw failure;
                         }
-                    }, mSparks.getPublicKey());
 
-                    JSONObject newPackage = mUpdateManager.getPackage(SparksUtils.tryGetString(updatePackage, SparksConstants.PACKAGE_HASH_KEY));
-                    promise.resolve(SparksUtils.convertJsonObjectToWritable(newPackage));
-                } catch (SparksInvalidUpdateException e) {
-                    SparksUtils.log(e);
-                    mSettingsManager.saveFailedUpdate(SparksUtils.convertReadableToJsonObject(updatePackage));
-                    promise.reject(e);
-                } catch (IOException | SparksUnknownException e) {
-                    SparksUtils.log(e);
-                    promise.reject(e);
+                        JSONObject newPackage = mUpdateManager.getPackage(SparksUtils.tryGetString(updatePackage, SparksConstants.PACKAGE_HASH_KEY));
+                        promise.resolve(SparksUtils.convertJsonObjectToWritable(newPackage));
+                    } catch (SparksDownloadCancelledException e) {
+                        SparksUtils.log(e.getMessage());
+                        promise.reject(SparksConstants.DOWNLOAD_CANCELLED_ERROR_CODE, e);
+                    } catch (SparksInvalidUpdateException e) {
+                        SparksUtils.log(e);
+                        mSettingsManager.saveFailedUpdate(SparksUtils.convertReadableToJsonObject(updatePackage));
+                        promise.reject(e);
+                    } catch (Throwable e) {
+                        SparksUtils.log(e);
+                        promise.reject(e);
+                    }
                 }
+            }, mSparks.getPublicKey());
+        } catch (SparksUnknownException e) {
+            SparksUtils.log(e);
+            promise.reject(e);
+        }
+    }
 
-                return null;
-            }
-        };
+    // The download controls resolve to whether the package was being downloaded, and so whether
+    // the call had any effect.
+    @ReactMethod
+    public void pauseDownload(String packageHash, Promise promise) {
+        promise.resolve(mUpdateManager.pauseDownload(packageHash));
+    }
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    @ReactMethod
+    public void resumeDownload(String packageHash, Promise promise) {
+        promise.resolve(mUpdateManager.resumeDownload(packageHash));
+    }
+
+    // Rejects the downloadUpdate promise of the package with DOWNLOAD_CANCELLED_ERROR_CODE.
+    @ReactMethod
+    public void cancelDownload(String packageHash, Promise promise) {
+        promise.resolve(mUpdateManager.cancelDownload(packageHash));
+    }
+
+    // Requests that joined the same download get the same progress updates, each of which only
+    // needs to be sent to JS once.
+    private synchronized boolean markDownloadProgressDispatched(DownloadProgress downloadProgress) {
+        if (downloadProgress == mLastDispatchedDownloadProgress) {
+            return false;
+        }
+
+        mLastDispatchedDownloadProgress = downloadProgress;
+        return true;
     }
 
     @ReactMethod
@@ -499,15 +520,15 @@ public class SparksNativeModule extends BaseJavaModule {
 
     @ReactMethod
     public void getUpdateMetadata(final int updateState, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mSparks.getExecutor().executeStateTask(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
                     JSONObject currentPackage = mUpdateManager.getCurrentPackage();
 
                     if (currentPackage == null) {
                         promise.resolve(null);
-                        return null;
+                        return;
                     }
 
                     Boolean currentUpdateIsPending = false;
@@ -528,7 +549,7 @@ public class SparksNativeModule extends BaseJavaModule {
 
                         if (previousPackage == null) {
                             promise.resolve(null);
-                            return null;
+                            return;
                         }
 
                         promise.resolve(SparksUtils.convertJsonObjectToWritable(previousPackage));
@@ -557,19 +578,15 @@ public class SparksNativeModule extends BaseJavaModule {
                     SparksUtils.log(e);
                     promise.reject(e);
                 }
-
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @ReactMethod
     public void getNewStatusReport(final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mSparks.getExecutor().executeStateTask(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
                     if (mSparks.needToReportRollback()) {
                         mSparks.setNeedToReportRollback(false);
@@ -581,10 +598,10 @@ public class SparksNativeModule extends BaseJavaModule {
                                 WritableMap failedStatusReport = mTelemetryManager.getRollbackReport(lastFailedPackage);
                                 if (failedStatusReport != null) {
                                     promise.resolve(failedStatusReport);
-                                    return null;
+                                    return;
                                 }
                             } catch (JSONException e) {
-                                throw new SparksUnknownException("Unable to read failed updates information stored in SharedPreferences.", e);
+                                throw new SparksUnknownException("Unable to read failed updates information stored in the state store.", e);
                             }
                         }
                     } else if (mSparks.didUpdate()) {
@@ -593,20 +610,20 @@ public class SparksNativeModule extends BaseJavaModule {
                             WritableMap newPackageStatusReport = mTelemetryManager.getUpdateReport(SparksUtils.convertJsonObjectToWritable(currentPackage));
                             if (newPackageStatusReport != null) {
                                 promise.resolve(newPackageStatusReport);
-                                return null;
+                                return;
                             }
                         }
                     } else if (mSparks.isRunningBinaryVersion()) {
                         WritableMap newAppVersionStatusReport = mTelemetryManager.getBinaryUpdateReport(mSparks.getAppVersion());
                         if (newAppVersionStatusReport != null) {
                             promise.resolve(newAppVersionStatusReport);
-                            return null;
+                            return;
                         }
                     } else {
                         WritableMap retryStatusReport = mTelemetryManager.getRetryStatusReport();
                         if (retryStatusReport != null) {
                             promise.resolve(retryStatusReport);
-                            return null;
+                            return;
                         }
                     }
 
@@ -615,28 +632,26 @@ public class SparksNativeModule extends BaseJavaModule {
                     SparksUtils.log(e);
                     promise.reject(e);
                 }
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @ReactMethod
     public void installUpdate(final ReadableMap updatePackage, final int installMode, final int minimumBackgroundDuration, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mSparks.getExecutor().executeStateTask(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
-                    mUpdateManager.installPackage(SparksUtils.convertReadableToJsonObject(updatePackage), mSettingsManager.isPendingUpdate(null));
-
                     String pendingHash = SparksUtils.tryGetString(updatePackage, SparksConstants.PACKAGE_HASH_KEY);
                     if (pendingHash == null) {
                         throw new SparksUnknownException("Update package to be installed has no hash.");
-                    } else {
-                        mSettingsManager.savePendingUpdate(pendingHash, /* isLoading */false);
                     }
 
+                    // The new current package and its pending update are committed together.
+                    SparksStateStore.Editor editor = mUpdateManager.getStateStore().edit();
+                    mSettingsManager.savePendingUpdate(pendingHash, /* isLoading */false, editor);
+                    mUpdateManager.installPackage(SparksUtils.convertReadableToJsonObject(updatePackage), mSettingsManager.isPendingUpdate(null), editor);
+
                     if (installMode == SparksInstallMode.ON_NEXT_RESUME.getValue() ||
                             // We also add the resume listener if the installMode is IMMEDIATE, because
                             // if the current activity is backgrounded, we want to reload the bundle when
@@ -702,12 +717,8 @@ public class SparksNativeModule extends BaseJavaModule {
                     SparksUtils.log(e);
                     promise.reject(e);
                 }
-
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        });
     }
 
     @ReactMethod
@@ -720,6 +731,78 @@ public class SparksNativeModule extends BaseJavaModule {
         }
     }
 
+    @ReactMethod
+    public void getDiskUsage(final Promise promise) {
+        mSparks.getExecutor().executeIoTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promise.resolve(SparksUtils.convertJsonObjectToWritable(mUpdateManager.getDiskUsage()));
+                } catch (SparksUnknownException e) {
+                    SparksUtils.log(e);
+                    promise.reject(e);
+                }
+            }
+        });
+    }
+
+    // Reports how busy the Sparks background threads are, e.g. to spot an update check that is
+    // waiting behind a slow download.
+    @ReactMethod
+    public void getExecutorMetrics(Promise promise) {
+        try {
+            promise.resolve(SparksUtils.convertJsonObjectToWritable(mSparks.getExecutor().getMetrics()));
+        } catch (SparksUnknownException e) {
+            SparksUtils.log(e);
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void getDownloadAttempts(Promise promise) {
+        try {
+            promise.resolve(SparksUtils.convertJsonArrayToWritable(mUpdateManager.getDownloadAttempts()));
+        } catch (SparksUnknownException e) {
+            SparksUtils.log(e);
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void getRetainedPackages(final Promise promise) {
+        mSparks.getExecutor().executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promise.resolve(SparksUtils.convertJsonArrayToWritable(mUpdateManager.getRetainedPackages()));
+                } catch (SparksMalformedDataException | SparksUnknownException e) {
+                    SparksUtils.log(e);
+                    promise.reject(e);
+                }
+            }
+        });
+    }
+
+    // Makes a retained package the pending update, as if it had just been installed, so that it is
+    // loaded on the next restart.
+    @ReactMethod
+    public void activatePackage(final String packageHash, final Promise promise) {
+        mSparks.getExecutor().executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SparksStateStore.Editor editor = mUpdateManager.getStateStore().edit();
+                    mSettingsManager.savePendingUpdate(packageHash, /* isLoading */false, editor);
+                    mUpdateManager.activatePackage(packageHash, mSettingsManager.isPendingUpdate(null), editor);
+                    promise.resolve("");
+                } catch (SparksMalformedDataException | SparksUnknownException e) {
+                    SparksUtils.log(e);
+                    promise.reject(e);
+                }
+            }
+        });
+    }
+
     @ReactMethod
     public void getLatestRollbackInfo(Promise promise) {
         try {
@@ -831,13 +914,8 @@ public class SparksNativeModule extends BaseJavaModule {
 
     public ReactHostDelegate getReactHostDelegate(ReactHostImpl reactHostImpl) {
         try {
-            Class<?> clazz = reactHostImpl.getClass();
-            Field field = clazz.getDeclaredField("mReactHostDelegate");
-            field.setAccessible(true);
-
-            // Get the value of the field for the provided instance
-            return (ReactHostDelegate) field.get(reactHostImpl);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return mReloadAdapter.getReactHostDelegate(reactHostImpl);
+        } catch (IllegalAccessException e) {
             e.printStackTrace();
             return null;
         }
@@ -0,0 +1,150 @@
+package com.marf.sparks.react;
+
+import com.facebook.react.ReactInstanceManager;
+import com.facebook.react.bridge.JSBundleLoader;
+import com.facebook.react.modules.debug.interfaces.DeveloperSettings;
+import com.facebook.react.runtime.ReactHostDelegate;
+import com.facebook.react.runtime.ReactHostImpl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+// Looks up the React Native internals that reloading the bundle relies on once per process, and
+// picks the cheapest way to reload that the running React Native version supports. Reloads then
+// use the cached fields, instead of looking them up again or finding out that they are missing
+// only after trying. See #556 for a proposal for a less brittle way to approach this.
+class SparksReloadAdapter {
+
+    enum Strategy {
+        // ReactHost.reload after replacing the bundle loader of its delegate (new architecture).
+        RELOAD_REACT_HOST,
+        // ReactInstanceManager.recreateReactContextInBackground after replacing its bundle loader.
+        RECREATE_REACT_CONTEXT,
+        // Recreating the current Activity, which works with any version.
+        RECREATE_ACTIVITY
+    }
+
+    private static final String DEFAULT_REACT_HOST_DELEGATE_CLASS_NAME = "com.facebook.react.defaults.DefaultReactHostDelegate";
+
+    private static SparksReloadAdapter sInstance;
+
+    private final Field mInstanceManagerBundleLoaderField;
+    private final Field mReactHostDelegateField;
+    // Delegates are implemented by the app, so their fields are looked up by class on first use.
+    // A null value records that the class has no such field or method.
+    private final HashMap<Class<?>, Field> mDelegateBundleLoaderFields = new HashMap<>();
+    private final HashMap<Class<?>, Method> mReloadOnJSChangeMethods = new HashMap<>();
+    private volatile Strategy mStrategy;
+
+    static synchronized SparksReloadAdapter getInstance() {
+        if (sInstance == null) {
+            sInstance = new SparksReloadAdapter(BuildConfig.IS_NEW_ARCHITECTURE_ENABLED);
+        }
+
+        return sInstance;
+    }
+
+    private SparksReloadAdapter(boolean isNewArchitectureEnabled) {
+        if (isNewArchitectureEnabled) {
+            mInstanceManagerBundleLoaderField = null;
+            mReactHostDelegateField = findField(ReactHostImpl.class, "mReactHostDelegate");
+            // Most apps use the default delegate, so its field is looked up right away as well.
+            try {
+                Class<?> defaultDelegateClass = Class.forName(DEFAULT_REACT_HOST_DELEGATE_CLASS_NAME);
+                mDelegateBundleLoaderFields.put(defaultDelegateClass, findField(defaultDelegateClass, "jsBundleLoader"));
+            } catch (ClassNotFoundException e) {
+                // Looked up on first use instead.
+            }
+
+            mStrategy = mReactHostDelegateField != null ? Strategy.RELOAD_REACT_HOST : Strategy.RECREATE_ACTIVITY;
+        } else {
+            mInstanceManagerBundleLoaderField = findField(ReactInstanceManager.class, "mBundleLoader");
+            mReactHostDelegateField = null;
+            mStrategy = mInstanceManagerBundleLoaderField != null ? Strategy.RECREATE_REACT_CONTEXT : Strategy.RECREATE_ACTIVITY;
+        }
+
+        SparksUtils.log("Reloading the bundle by " + mStrategy);
+    }
+
+    Strategy getStrategy() {
+        return mStrategy;
+    }
+
+    // Called once replacing the bundle loader has failed, so that later reloads go straight to
+    // recreating the Activity.
+    void fallBackToActivityRecreation() {
+        mStrategy = Strategy.RECREATE_ACTIVITY;
+    }
+
+    void setJSBundleLoader(ReactInstanceManager instanceManager, JSBundleLoader bundleLoader) throws IllegalAccessException {
+        if (mInstanceManagerBundleLoaderField == null) {
+            throw new IllegalAccessException("ReactInstanceManager has no bundle loader field");
+        }
+
+        mInstanceManagerBundleLoaderField.set(instanceManager, bundleLoader);
+    }
+
+    void setJSBundleLoader(ReactHostDelegate reactHostDelegate, JSBundleLoader bundleLoader) throws IllegalAccessException {
+        Field bundleLoaderField;
+        synchronized (mDelegateBundleLoaderFields) {
+            Class<?> delegateClass = reactHostDelegate.getClass();
+            if (!mDelegateBundleLoaderFields.containsKey(delegateClass)) {
+                mDelegateBundleLoaderFields.put(delegateClass, findField(delegateClass, "jsBundleLoader"));
+            }
+
+            bundleLoaderField = mDelegateBundleLoaderFields.get(delegateClass);
+        }
+
+        if (bundleLoaderField == null) {
+            throw new IllegalAccessException(reactHostDelegate.getClass().getName() + " has no bundle loader field");
+        }
+
+        bundleLoaderField.set(reactHostDelegate, bundleLoader);
+    }
+
+    ReactHostDelegate getReactHostDelegate(ReactHostImpl reactHostImpl) throws IllegalAccessException {
+        if (mReactHostDelegateField == null) {
+            throw new IllegalAccessException("ReactHostImpl has no delegate field");
+        }
+
+        return (ReactHostDelegate) mReactHostDelegateField.get(reactHostImpl);
+    }
+
+    boolean isReloadOnJSChangeEnabled(DeveloperSettings devSettings) {
+        Method method;
+        synchronized (mReloadOnJSChangeMethods) {
+            Class<?> settingsClass = devSettings.getClass();
+            if (!mReloadOnJSChangeMethods.containsKey(settingsClass)) {
+                try {
+                    mReloadOnJSChangeMethods.put(settingsClass, settingsClass.getMethod("isReloadOnJSChangeEnabled"));
+                } catch (NoSuchMethodException e) {
+                    mReloadOnJSChangeMethods.put(settingsClass, null);
+                }
+            }
+
+            method = mReloadOnJSChangeMethods.get(settingsClass);
+        }
+
+        if (method == null) {
+            return false;
+        }
+
+        try {
+            return (boolean) method.invoke(devSettings);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static Field findField(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            SparksUtils.log("Unable to find " + clazz.getName() + "." + name + " - Sparks may not support this version of React Native");
+            return null;
+        }
+    }
+}
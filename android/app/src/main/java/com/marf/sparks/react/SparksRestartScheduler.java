@@ -0,0 +1,171 @@
+package com.marf.sparks.react;
+
+import org.json.JSONObject;
+
+// Decides when the app is restarted to load a new bundle. Requests that cannot be served right
+// away, because restarts are disallowed or a restart is already in progress, are merged instead
+// of queued, so that a burst of requests leads to at most one more reload. A request to restart
+// unconditionally wins over one to restart only if an update is pending.
+// All state is only touched on the state lane of the Sparks executor, which also orders restarts
+// after any install that was requested before them.
+public class SparksRestartScheduler {
+
+    // Starts reloading the bundle, and returns whether a reload is now on its way.
+    interface Reloader {
+        boolean reload();
+    }
+
+    private final SparksExecutor mExecutor;
+    private final SettingsManager mSettingsManager;
+
+    private Reloader mReloader;
+    private boolean mIsAllowed = true;
+    private boolean mIsReloading = false;
+    // The merged request waiting for restarts to be allowed again, or null if there is none.
+    private Boolean mPendingOnlyIfUpdateIsPending = null;
+
+    private long mLastReloadStartTime = 0;
+    private long mLastReloadFinishTime = 0;
+    private long mReloadCount = 0;
+    private long mCoalescedRequestCount = 0;
+
+    public SparksRestartScheduler(SparksExecutor executor, SettingsManager settingsManager) {
+        mExecutor = executor;
+        mSettingsManager = settingsManager;
+    }
+
+    // Called by each new native module. Since the module is created again for the new bundle, this
+    // is also what finishes a reload. The new bundle starts out allowing restarts, and requests
+    // made by the previous one have been served by the reload.
+    void attach(final Reloader reloader) {
+        mExecutor.executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                mReloader = reloader;
+                mIsAllowed = true;
+                mPendingOnlyIfUpdateIsPending = null;
+                finishReload();
+            }
+        });
+    }
+
+    public void requestRestart(final boolean onlyIfUpdateIsPending) {
+        mExecutor.executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsReloading) {
+                    SparksUtils.log("Restart request merged into the restart in progress");
+                    countCoalescedRequest();
+                    return;
+                }
+
+                if (mPendingOnlyIfUpdateIsPending != null) {
+                    countCoalescedRequest();
+                    mPendingOnlyIfUpdateIsPending = mPendingOnlyIfUpdateIsPending && onlyIfUpdateIsPending;
+                } else {
+                    mPendingOnlyIfUpdateIsPending = onlyIfUpdateIsPending;
+                }
+
+                if (!mIsAllowed) {
+                    SparksUtils.log("Restart request queued until restarts are re-allowed");
+                    return;
+                }
+
+                restartIfNeeded();
+            }
+        });
+    }
+
+    public void allow() {
+        mExecutor.executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                SparksUtils.log("Re-allowing restarts");
+                mIsAllowed = true;
+                if (mPendingOnlyIfUpdateIsPending != null && !mIsReloading) {
+                    SparksUtils.log("Executing pending restart");
+                    restartIfNeeded();
+                }
+            }
+        });
+    }
+
+    public void disallow() {
+        mExecutor.executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                SparksUtils.log("Disallowing restarts");
+                mIsAllowed = false;
+            }
+        });
+    }
+
+    public void clearPendingRestart() {
+        mExecutor.executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                mPendingOnlyIfUpdateIsPending = null;
+            }
+        });
+    }
+
+    public synchronized JSONObject getMetrics() {
+        JSONObject metrics = new JSONObject();
+        // As doubles, since the bridge has no 64-bit integers. Times are in milliseconds since the
+        // epoch, or 0 if there was no reload yet.
+        SparksUtils.setJSONValueForKey(metrics, "lastReloadStartTime", (double) mLastReloadStartTime);
+        SparksUtils.setJSONValueForKey(metrics, "lastReloadFinishTime", (double) mLastReloadFinishTime);
+        SparksUtils.setJSONValueForKey(metrics, "reloadCount", (double) mReloadCount);
+        SparksUtils.setJSONValueForKey(metrics, "coalescedRequestCount", (double) mCoalescedRequestCount);
+        return metrics;
+    }
+
+    private void restartIfNeeded() {
+        boolean onlyIfUpdateIsPending = mPendingOnlyIfUpdateIsPending;
+        mPendingOnlyIfUpdateIsPending = null;
+        if (onlyIfUpdateIsPending && !mSettingsManager.isPendingUpdate(null)) {
+            return;
+        }
+
+        if (mReloader == null) {
+            SparksUtils.log("Unable to restart the app before the Sparks module is initialized");
+            return;
+        }
+
+        synchronized (this) {
+            mIsReloading = true;
+            mLastReloadStartTime = System.currentTimeMillis();
+            mReloadCount++;
+        }
+
+        SparksUtils.log("Restarting app");
+        if (!mReloader.reload()) {
+            // Nothing will create a new module, so nothing else would finish the reload.
+            finishReload();
+        }
+    }
+
+    private synchronized void countCoalescedRequest() {
+        mCoalescedRequestCount++;
+    }
+
+    // For a reload that failed after reload() returned.
+    void onReloadFailed() {
+        mExecutor.executeStateTask(new Runnable() {
+            @Override
+            public void run() {
+                finishReload();
+            }
+        });
+    }
+
+    private synchronized void finishReload() {
+        if (!mIsReloading) {
+            return;
+        }
+
+        mIsReloading = false;
+        mLastReloadFinishTime = System.currentTimeMillis();
+        SparksUtils.log("Restart finished after " + (mLastReloadFinishTime - mLastReloadStartTime) + " ms");
+    }
+}
@@ -0,0 +1,361 @@
+package com.marf.sparks.react;
+
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Downloads the remainder of a file over several concurrent HTTP range requests, writing each
+// segment at its offset in a preallocated file. Segment size follows the throughput measured on
+// each connection, and connections are added for as long as they raise the total throughput.
+class SparksSegmentedDownloader {
+
+    interface Listener {
+        // Called with the total number of bytes received so far, and the number of bytes from
+        // the start of the file that have all been written and can be resumed from.
+        void onProgress(long totalBytes, long receivedBytes, long contiguousBytes);
+
+        // Called by each connection before every read. Throwing stops the whole download.
+        void checkpoint() throws IOException;
+    }
+
+    private static final int INITIAL_CONNECTION_COUNT = 2;
+    private static final long INITIAL_SEGMENT_SIZE = 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = SparksConstants.DOWNLOAD_BUFFER_SIZE;
+    private static final long MAX_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final long SEGMENT_TARGET_DURATION_MS = 2000;
+    // Another connection is only kept on ramping up if it improved throughput by at least 10%.
+    private static final double MIN_THROUGHPUT_GAIN = 1.1;
+
+    private final URL mDownloadUrl;
+    private final File mDownloadFile;
+    private final long mTotalBytes;
+    private final String mValidator;
+    private final int mMaxConnections;
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final Listener mListener;
+
+    private final TreeMap<Long, Long> mCompletedSegments = new TreeMap<>();
+    private long mNextSegmentOffset;
+    private long mContiguousBytes;
+    private long mReceivedBytes;
+    private long mReportedBytes;
+    private int mActiveConnections = 0;
+    private boolean mIsRampingUp = true;
+    private double mLastThroughput = 0;
+    private long mThroughputWindowStart;
+    private long mThroughputWindowBytes = 0;
+    private IOException mFailure;
+    private final AtomicBoolean mIsReportingProgress = new AtomicBoolean(false);
+
+    private ExecutorService mExecutor;
+    private FileChannel mChannel;
+
+    SparksSegmentedDownloader(URL downloadUrl, File downloadFile, long startOffset, long totalBytes,
+                              String validator, int maxConnections, int connectTimeout, int readTimeout,
+                              Listener listener) {
+        mDownloadUrl = downloadUrl;
+        mDownloadFile = downloadFile;
+        mTotalBytes = totalBytes;
+        mValidator = validator;
+        mMaxConnections = maxConnections;
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mListener = listener;
+        mNextSegmentOffset = startOffset;
+        mContiguousBytes = startOffset;
+        mReceivedBytes = startOffset;
+        mReportedBytes = startOffset;
+    }
+
+    static boolean isSupported(HttpURLConnection connection, int maxConnections, long minSize) {
+        return maxConnections > 1
+                && connection.getContentLength() >= minSize
+                && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))
+                && getValidator(connection) != null;
+    }
+
+    static String getValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    synchronized long getContiguousBytes() {
+        return mContiguousBytes;
+    }
+
+    // Completes the download. The body of initialConnection, which must start at the start
+    // offset, is used for the first segment so that the request already made is not wasted.
+    void download(final HttpURLConnection initialConnection) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mDownloadFile, "rw");
+        try {
+            file.setLength(mTotalBytes);
+            mChannel = file.getChannel();
+            mExecutor = Executors.newFixedThreadPool(mMaxConnections,
+                    SparksExecutor.newThreadFactory("SparksSegment", Process.THREAD_PRIORITY_BACKGROUND));
+
+            synchronized (this) {
+                mThroughputWindowStart = System.currentTimeMillis();
+                final long[] firstSegment = claimSegment(INITIAL_SEGMENT_SIZE);
+                startConnection(new Runnable() {
+                    @Override
+                    public void run() {
+                        long segmentSize = INITIAL_SEGMENT_SIZE;
+                        try {
+                            segmentSize = readSegment(initialConnection, firstSegment);
+                        } catch (IOException e) {
+                            fail(e);
+                        } finally {
+                            initialConnection.disconnect();
+                        }
+
+                        downloadSegments(segmentSize);
+                    }
+                });
+
+                for (int i = 1; i < Math.min(INITIAL_CONNECTION_COUNT, mMaxConnections); i++) {
+                    startSegmentConnection();
+                }
+
+                while (mActiveConnections > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fail(new IOException("Segmented download was interrupted.", e));
+                        break;
+                    }
+                }
+
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+
+                if (mContiguousBytes != mTotalBytes) {
+                    throw new IOException("Segmented download ended at byte " + mContiguousBytes + " of " + mTotalBytes);
+                }
+            }
+
+            // The connections have all stopped, so this is the only report left, and the one that
+            // tells that the download is complete.
+            if (mReportedBytes != mTotalBytes) {
+                mReportedBytes = mTotalBytes;
+                mListener.onProgress(mTotalBytes, mTotalBytes, mTotalBytes);
+            }
+        } finally {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                try {
+                    mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            file.close();
+        }
+    }
+
+    private void startSegmentConnection() {
+        startConnection(new Runnable() {
+            @Override
+            public void run() {
+                downloadSegments(INITIAL_SEGMENT_SIZE);
+            }
+        });
+    }
+
+    // Must be called while holding the lock.
+    private void startConnection(final Runnable connection) {
+        mActiveConnections++;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.run();
+                } finally {
+                    synchronized (SparksSegmentedDownloader.this) {
+                        mActiveConnections--;
+                        SparksSegmentedDownloader.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void downloadSegments(long segmentSize) {
+        long[] segment;
+        while ((segment = claimSegment(segmentSize)) != null) {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) mDownloadUrl.openConnection();
+                connection.setConnectTimeout(mConnectTimeout);
+                connection.setReadTimeout(mReadTimeout);
+                connection.setRequestProperty("Accept-Encoding", "identity");
+                connection.setRequestProperty("Range", "bytes=" + segment[0] + "-" + (segment[1] - 1));
+                connection.setRequestProperty("If-Range", mValidator);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Server responded with " + connection.getResponseCode() + " to a segment request");
+                }
+
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange == null || !contentRange.startsWith("bytes " + segment[0] + "-")) {
+                    throw new IOException("Server responded with an unexpected range " + contentRange);
+                }
+
+                segmentSize = readSegment(connection, segment);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            } finally {
+                if (connection != null) connection.disconnect();
+            }
+        }
+    }
+
+    // Reads the body of connection into the given segment of the file, returning the size of the
+    // next segment to request so that it takes about SEGMENT_TARGET_DURATION_MS at this speed.
+    private long readSegment(HttpURLConnection connection, long[] segment) throws IOException {
+        long startTime = System.currentTimeMillis();
+        InputStream bin = new BufferedInputStream(connection.getInputStream());
+        try {
+            byte[] data = new byte[SparksConstants.DOWNLOAD_BUFFER_SIZE];
+            long position = segment[0];
+            while (position < segment[1]) {
+                if (isFailed()) {
+                    throw new IOException("Segment aborted after another segment failed.");
+                }
+
+                mListener.checkpoint();
+
+                int numBytesRead = bin.read(data, 0, (int) Math.min(data.length, segment[1] - position));
+                if (numBytesRead < 0) {
+                    throw new IOException("Segment ended at byte " + position + ", expected " + segment[1]);
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, numBytesRead);
+                while (buffer.hasRemaining()) {
+                    position += mChannel.write(buffer, position);
+                }
+
+                onBytesReceived(numBytesRead);
+            }
+        } finally {
+            bin.close();
+        }
+
+        onSegmentCompleted(segment);
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        return (segment[1] - segment[0]) * SEGMENT_TARGET_DURATION_MS / duration;
+    }
+
+    private synchronized long[] claimSegment(long segmentSize) {
+        if (mFailure != null || mNextSegmentOffset >= mTotalBytes) {
+            return null;
+        }
+
+        segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segmentSize));
+        // Split what is left evenly rather than leaving one connection with a long tail.
+        long remainingBytes = mTotalBytes - mNextSegmentOffset;
+        segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(segmentSize, remainingBytes / Math.max(1, mActiveConnections)));
+        long[] segment = new long[] { mNextSegmentOffset, Math.min(mTotalBytes, mNextSegmentOffset + segmentSize) };
+        mNextSegmentOffset = segment[1];
+        return segment;
+    }
+
+    // Progress is reported about once per buffer, as when downloading over a single connection,
+    // rather than once per read of every connection.
+    private void onBytesReceived(int numBytes) {
+        synchronized (this) {
+            mReceivedBytes += numBytes;
+            mThroughputWindowBytes += numBytes;
+            if (mReceivedBytes - mReportedBytes < SparksConstants.DOWNLOAD_BUFFER_SIZE) {
+                return;
+            }
+        }
+
+        reportProgress();
+    }
+
+    // Calls the listener, which may write the download journal, outside of the lock so that the
+    // other connections keep reading meanwhile. Only one connection reports at a time, with the
+    // latest counts, so that the listener never sees them go back. If another one is already
+    // reporting, this one skips it.
+    private void reportProgress() {
+        if (!mIsReportingProgress.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long receivedBytes;
+            long contiguousBytes;
+            synchronized (this) {
+                receivedBytes = mReceivedBytes;
+                contiguousBytes = mContiguousBytes;
+                mReportedBytes = receivedBytes;
+            }
+
+            mListener.onProgress(mTotalBytes, receivedBytes, contiguousBytes);
+        } finally {
+            mIsReportingProgress.set(false);
+        }
+    }
+
+    private synchronized void onSegmentCompleted(long[] segment) {
+        mCompletedSegments.put(segment[0], segment[1]);
+        Map.Entry<Long, Long> next;
+        while ((next = mCompletedSegments.firstEntry()) != null && next.getKey() == mContiguousBytes) {
+            mContiguousBytes = next.getValue();
+            mCompletedSegments.remove(next.getKey());
+        }
+
+        if (!mIsRampingUp || mActiveConnections >= mMaxConnections || mNextSegmentOffset >= mTotalBytes) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - mThroughputWindowStart < SEGMENT_TARGET_DURATION_MS) {
+            return;
+        }
+
+        double throughput = (double) mThroughputWindowBytes / (now - mThroughputWindowStart);
+        if (throughput >= mLastThroughput * MIN_THROUGHPUT_GAIN) {
+            mLastThroughput = throughput;
+            startSegmentConnection();
+        } else {
+            // The link is saturated, more connections would only add overhead.
+            mIsRampingUp = false;
+        }
+
+        mThroughputWindowStart = now;
+        mThroughputWindowBytes = 0;
+    }
+
+    private synchronized boolean isFailed() {
+        return mFailure != null;
+    }
+
+    private synchronized void fail(IOException e) {
+        if (mFailure == null) {
+            mFailure = e;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.marf.sparks.react;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Small key-value store for the install state, kept in memory and persisted as an append-only log.
+// Every commit appends one record with all of its changes, so changes that belong together, such
+// as a new current package and its pending update, are applied together or not at all. Once the
+// log has grown past MAX_LOG_SIZE, it is compacted into a single record with the current state.
+// Layout: magic and format version, then records made up of the payload length, the payload and
+// a CRC32 of the payload. A record that is cut off or fails the CRC ends the log.
+public class SparksStateStore {
+
+    private static final int MAGIC = 0x53505354;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final long MAX_LOG_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mLogFile;
+    private final HashMap<String, String> mState = new HashMap<>();
+    private long mLogSize = 0;
+    private long mVersion = 0;
+
+    public SparksStateStore(String logFilePath) {
+        mLogFile = new File(logFilePath);
+        load();
+    }
+
+    public String getLogFilePath() {
+        return mLogFile.getPath();
+    }
+
+    public synchronized String getString(String key) {
+        return mState.get(key);
+    }
+
+    public synchronized boolean contains(String key) {
+        return mState.containsKey(key);
+    }
+
+    // Changes with every commit, so that values parsed from the store can be cached until then.
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    private void load() {
+        if (!mLogFile.exists()) {
+            return;
+        }
+
+        byte[] log;
+        try {
+            log = readFile(mLogFile);
+        } catch (IOException e) {
+            throw new SparksUnknownException("Unable to read the state log.", e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(log);
+        if (log.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            SparksUtils.log("Discarding unrecognized state log " + mLogFile.getPath());
+            mLogFile.delete();
+            return;
+        }
+
+        int validSize = HEADER_SIZE;
+        while (buffer.remaining() >= 4) {
+            int payloadSize = buffer.getInt();
+            if (payloadSize < 0 || buffer.remaining() < payloadSize + 4) {
+                break;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(log, buffer.position(), payloadSize);
+            int payloadStart = buffer.position();
+            buffer.position(payloadStart + payloadSize);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            try {
+                applyChanges(mState, readPayload(ByteBuffer.wrap(log, payloadStart, payloadSize)));
+            } catch (RuntimeException e) {
+                break;
+            }
+
+            validSize = buffer.position();
+        }
+
+        mLogSize = validSize;
+        if (validSize < log.length) {
+            // Cut off by a crash while appending. Drop the partial record, so that the next one is
+            // not appended after it.
+            SparksUtils.log("Truncating state log after " + validSize + " of " + log.length + " bytes");
+            try {
+                RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+                try {
+                    file.setLength(validSize);
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                throw new SparksUnknownException("Unable to truncate the state log.", e);
+            }
+        }
+    }
+
+    private synchronized void write(Map<String, String> changes, boolean isDurable) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        HashMap<String, String> newState = new HashMap<>(mState);
+        applyChanges(newState, changes);
+        try {
+            if (mLogSize == 0 || mLogSize > MAX_LOG_SIZE) {
+                // A new log always starts out compacted, and compacting always syncs, as it
+                // replaces the existing log.
+                writeCompactedLog(newState);
+            } else {
+                mLogSize += appendRecord(changes, isDurable);
+            }
+        } catch (IOException e) {
+            throw new SparksUnknownException("Unable to write to the state log.", e);
+        }
+
+        mState.clear();
+        mState.putAll(newState);
+        mVersion++;
+    }
+
+    private long appendRecord(Map<String, String> changes, boolean isDurable) throws IOException {
+        byte[] record = encodeRecord(changes);
+        FileOutputStream fout = new FileOutputStream(mLogFile, true);
+        try {
+            fout.write(record);
+            if (isDurable) {
+                fout.getFD().sync();
+            }
+        } finally {
+            fout.close();
+        }
+
+        return record.length;
+    }
+
+    private void writeCompactedLog(Map<String, String> state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.write(encodeRecord(state));
+        out.flush();
+
+        File tempFile = new File(mLogFile.getPath() + ".tmp");
+        File logFolder = mLogFile.getParentFile();
+        if (logFolder != null && !logFolder.exists()) {
+            logFolder.mkdirs();
+        }
+
+        FileOutputStream fout = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(fout);
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+
+        if (!tempFile.renameTo(mLogFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to move compacted state log to " + mLogFile.getPath());
+        }
+
+        mLogSize = bytes.size();
+    }
+
+    // A null value removes the key.
+    private static void applyChanges(Map<String, String> state, Map<String, String> changes) {
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                state.remove(change.getKey());
+            } else {
+                state.put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private static byte[] encodeRecord(Map<String, String> changes) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeInt(changes.size());
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            writeString(payload, change.getKey());
+            payload.writeBoolean(change.getValue() != null);
+            if (change.getValue() != null) {
+                writeString(payload, change.getValue());
+            }
+        }
+
+        payload.flush();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes.toByteArray());
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(payloadBytes.size() + 8);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(payloadBytes.size());
+        payloadBytes.writeTo(record);
+        record.writeInt((int) crc.getValue());
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+
+    private static Map<String, String> readPayload(ByteBuffer payload) {
+        LinkedHashMap<String, String> changes = new LinkedHashMap<>();
+        int changeCount = payload.getInt();
+        for (int i = 0; i < changeCount; i++) {
+            String key = readString(payload);
+            changes.put(key, payload.get() != 0 ? readString(payload) : null);
+        }
+
+        return changes;
+    }
+
+    // Values such as the failed updates can exceed what writeUTF allows, so strings are written
+    // as their length followed by their UTF-8 bytes.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+
+        String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int numBytesRead;
+            while (offset < contents.length && (numBytesRead = fin.read(contents, offset, contents.length - offset)) > 0) {
+                offset += numBytesRead;
+            }
+
+            if (offset < contents.length) {
+                byte[] truncatedContents = new byte[offset];
+                System.arraycopy(contents, 0, truncatedContents, 0, offset);
+                return truncatedContents;
+            }
+        } finally {
+            fin.close();
+        }
+
+        return contents;
+    }
+
+    // Collects changes to commit together. Like SharedPreferences.Editor, nothing is visible to
+    // readers of the store until the changes are committed or applied. Unlike it, apply does not
+    // hand the write to another thread.
+    public class Editor {
+
+        private final LinkedHashMap<String, String> mChanges = new LinkedHashMap<>();
+
+        private Editor() {
+        }
+
+        // A null value removes the key.
+        public Editor putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Editor remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        // Writes the changes and waits until they are on disk.
+        public void commit() {
+            write(mChanges, true);
+            mChanges.clear();
+        }
+
+        // Writes the changes on the caller's thread, like commit, but without the fsync. They
+        // survive the app being killed, but not a sudden power loss before the next commit. Once
+        // the log has grown past MAX_LOG_SIZE, this compacts it, which does fsync on the caller's
+        // thread, so keep it off the UI thread as well.
+        public void apply() {
+            write(mChanges, false);
+            mChanges.clear();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.marf.sparks.react;
+
+import android.os.Process;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Deletes files and folders that are no longer needed without making the caller wait for it. They
+// are renamed into the trash folder, which takes the same time however large they are, and the
+// trash is then emptied one entry at a time on a low priority background thread.
+public class SparksTrash {
+
+    private static final AtomicLong sTrashedCount = new AtomicLong(System.currentTimeMillis());
+
+    // Trash folders waiting to be emptied, and whether the thread emptying them is running. Shared
+    // by all instances, so that there is never more than one such thread.
+    private static final LinkedHashSet<String> sPendingTrashPaths = new LinkedHashSet<>();
+    private static boolean sIsReaping = false;
+
+    private final String mTrashPath;
+
+    public SparksTrash(String trashPath) {
+        mTrashPath = trashPath;
+    }
+
+    // Moves the file or folder at path into the trash and schedules emptying it. Falls back to
+    // deleting it right away if it cannot be moved.
+    public void delete(String path) {
+        if (path == null) {
+            SparksUtils.log("Attempted to move a null path to the trash");
+            return;
+        }
+
+        File file = new File(path);
+        if (!file.exists()) {
+            return;
+        }
+
+        File trashFolder = new File(mTrashPath);
+        if (!trashFolder.exists()) {
+            trashFolder.mkdirs();
+        }
+
+        File trashedFile = new File(trashFolder, file.getName() + "." + sTrashedCount.incrementAndGet());
+        if (!file.renameTo(trashedFile)) {
+            SparksUtils.log("Unable to move " + path + " to the trash, deleting it instead");
+            FileUtils.deleteFileOrFolderSilently(file);
+            return;
+        }
+
+        empty();
+    }
+
+    // Schedules emptying the trash, e.g. of what was left in it when the app was last killed.
+    public void empty() {
+        String[] trashedFileNames = new File(mTrashPath).list();
+        if (trashedFileNames == null || trashedFileNames.length == 0) {
+            return;
+        }
+
+        synchronized (SparksTrash.class) {
+            sPendingTrashPaths.add(mTrashPath);
+            if (sIsReaping) {
+                return;
+            }
+
+            sIsReaping = true;
+        }
+
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                String trashPath;
+                while ((trashPath = takePendingTrashPath()) != null) {
+                    reap(new File(trashPath));
+                }
+            }
+        }, "SparksTrashReaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private static String takePendingTrashPath() {
+        synchronized (SparksTrash.class) {
+            if (sPendingTrashPaths.isEmpty()) {
+                sIsReaping = false;
+                return null;
+            }
+
+            String trashPath = sPendingTrashPaths.iterator().next();
+            sPendingTrashPaths.remove(trashPath);
+            return trashPath;
+        }
+    }
+
+    // Lists the trash again once done, so that what was moved into it meanwhile is deleted as
+    // well. The trash folder itself is kept, as it may be about to receive another entry.
+    private static void reap(File trashFolder) {
+        boolean isDeleting = true;
+        File[] trashedFiles;
+        while (isDeleting && (trashedFiles = trashFolder.listFiles()) != null && trashedFiles.length > 0) {
+            // Stops once nothing can be deleted, instead of trying forever.
+            isDeleting = false;
+            for (File trashedFile : trashedFiles) {
+                FileUtils.deleteFileOrFolderSilently(trashedFile);
+                isDeleting |= !trashedFile.exists();
+            }
+        }
+    }
+}
@@ -1,31 +1,364 @@
 package com.marf.sparks.react;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class SparksUpdateManager {
 
+    private static final int MAX_DOWNLOAD_ATTEMPT_RECORDS = 50;
+
     private String mDocumentsDirectory;
+    private final SparksExecutor mExecutor;
+    private int mMaxDownloadConnections = SparksConstants.DEFAULT_MAX_DOWNLOAD_CONNECTIONS;
+    private int mDownloadConnectTimeout = SparksConstants.DEFAULT_DOWNLOAD_CONNECT_TIMEOUT;
+    private int mDownloadReadTimeout = SparksConstants.DEFAULT_DOWNLOAD_READ_TIMEOUT;
+    private long mMinDownloadThroughput = SparksConstants.DEFAULT_MIN_DOWNLOAD_THROUGHPUT;
+    private int mMaxDownloadRetries = SparksConstants.DEFAULT_MAX_DOWNLOAD_RETRIES;
+    private boolean mIsStreamingExtractionEnabled = false;
+    private boolean mIsCompressedTransferEnabled = false;
+    private SparksStateStore mStateStore;
+    private long mStorageQuota = 0;
+    private int mRetainedPackageCount = SparksConstants.DEFAULT_RETAINED_PACKAGE_COUNT;
+
+    // Downloads in progress by package hash, whose staging and download folders must not be
+    // collected as garbage, and packages downloaded since the app started, which may still be
+    // installed.
+    private final HashMap<String, SparksDownloadFlight> mDownloadFlights = new HashMap<>();
+    private final Set<String> mDownloadedPackageHashes = Collections.synchronizedSet(new HashSet<String>());
+    private final Object mGarbageCollectionLock = new Object();
+    // Held across every change to the retained packages, which installs and rollbacks on the state
+    // lane and the storage quota on the I/O lane derive from the list they read.
+    private final Object mRetainedPackagesLock = new Object();
+    private final AtomicBoolean mIsGarbageCollectionScheduled = new AtomicBoolean(false);
+    // The folders whose file hash indexes the last blob sweep went by, or null before the first.
+    private HashSet<String> mBlobSweepFolderNames = null;
+
+    // The latest download attempts, oldest first, for telemetry.
+    private final ArrayDeque<JSONObject> mDownloadAttempts = new ArrayDeque<>();
+    private final Random mRandom = new Random();
+
+    // Cache of the package metadata, keyed by file path. Every invalidation bumps mMetadataVersion,
+    // so that a value read from disk is only cached if nothing changed in the meantime, and readers
+    // never mix an old and a new state.
+    private final Object mMetadataLock = new Object();
+    private long mMetadataVersion = 0;
+    private final HashMap<String, JSONObject> mCachedMetadata = new HashMap<>();
 
-    public SparksUpdateManager(String documentsDirectory) {
+    // Downloads run on the I/O lane of the executor.
+    public SparksUpdateManager(String documentsDirectory, SparksExecutor executor) {
         mDocumentsDirectory = documentsDirectory;
+        mExecutor = executor;
+    }
+
+    public void setMaxDownloadConnections(int maxDownloadConnections) {
+        mMaxDownloadConnections = Math.max(1, maxDownloadConnections);
+    }
+
+    // In milliseconds, where 0 waits forever.
+    public void setDownloadConnectTimeout(int downloadConnectTimeout) {
+        mDownloadConnectTimeout = Math.max(0, downloadConnectTimeout);
+    }
+
+    // The longest wait for the next bytes of a download, in milliseconds, where 0 waits forever.
+    public void setDownloadReadTimeout(int downloadReadTimeout) {
+        mDownloadReadTimeout = Math.max(0, downloadReadTimeout);
+    }
+
+    // In bytes per second, where 0 never treats a download as stalled.
+    public void setMinDownloadThroughput(long minDownloadThroughput) {
+        mMinDownloadThroughput = Math.max(0, minDownloadThroughput);
+    }
+
+    public void setMaxDownloadRetries(int maxDownloadRetries) {
+        mMaxDownloadRetries = Math.max(0, maxDownloadRetries);
+    }
+
+    public void setStreamingExtractionEnabled(boolean isStreamingExtractionEnabled) {
+        mIsStreamingExtractionEnabled = isStreamingExtractionEnabled;
+    }
+
+    public void setCompressedTransferEnabled(boolean isCompressedTransferEnabled) {
+        mIsCompressedTransferEnabled = isCompressedTransferEnabled;
+    }
+
+    public void setStorageQuota(long storageQuota) {
+        mStorageQuota = Math.max(0, storageQuota);
+    }
+
+    public void setRetainedPackageCount(int retainedPackageCount) {
+        mRetainedPackageCount = Math.max(0, retainedPackageCount);
+    }
+
+    // Each package is downloaded in a folder of its own, so that downloads of different packages
+    // can run side by side.
+    private String getDownloadFolderPath(String packageHash) {
+        return SparksUtils.appendPathComponent(getSparksPath(), packageHash + SparksConstants.DOWNLOAD_FOLDER_SUFFIX);
+    }
+
+    private String getDownloadFilePath(String packageHash) {
+        return SparksUtils.appendPathComponent(getDownloadFolderPath(packageHash), SparksConstants.DOWNLOAD_FILE_NAME);
+    }
+
+    private String getStagingFolderPath(String packageHash) {
+        return SparksUtils.appendPathComponent(getSparksPath(), packageHash + SparksConstants.STAGING_FOLDER_SUFFIX);
     }
 
-    private String getDownloadFilePath() {
-        return SparksUtils.appendPathComponent(getSparksPath(), SparksConstants.DOWNLOAD_FILE_NAME);
+
+    private SparksTrash getTrash() {
+        return new SparksTrash(SparksUtils.appendPathComponent(getSparksPath(), SparksConstants.TRASH_FOLDER_NAME));
+    }
+
+    // Deletes what is left in the trash, e.g. because the app was killed before it was emptied.
+    public void emptyTrash() {
+        getTrash().empty();
+    }
+
+    private SparksBlobStore getBlobStore() {
+        return new SparksBlobStore(SparksUtils.appendPathComponent(getSparksPath(), SparksConstants.BLOB_STORE_FOLDER_NAME));
+    }
+
+    private String getPendingPackageHash() {
+        String pendingUpdateString = getStateStore().getString(SparksConstants.PENDING_UPDATE_KEY);
+        if (pendingUpdateString == null) {
+            return null;
+        }
+
+        try {
+            return new JSONObject(pendingUpdateString).optString(SparksConstants.PENDING_UPDATE_HASH_KEY, null);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private Set<String> getDownloadingPackageHashes() {
+        synchronized (mDownloadFlights) {
+            return new HashSet<>(mDownloadFlights.keySet());
+        }
+    }
+
+    // Whether the download folder of the given package holds a download that can be resumed.
+    private boolean isDownloadResumable(String packageHash) {
+        return FileUtils.fileAtPathExists(getDownloadFilePath(packageHash)) && FileUtils.fileAtPathExists(getDownloadJournalPath(packageHash));
     }
 
-    private String getUnzippedFolderPath() {
-        return SparksUtils.appendPathComponent(getSparksPath(), SparksConstants.UNZIPPED_FOLDER_NAME);
+    // Whether the entry of the Sparks folder with the given name is still needed. Package folders
+    // are needed while they are the current, previous or pending package, or are being or were
+    // downloaded since the app started. Staging and download folders are only needed while their package is
+    // being downloaded, or, for a download folder, while its journal allows resuming it. The
+    // download file and journal that all packages shared before are no longer needed.
+    private boolean isSparksEntryInUse(String name, Set<String> downloadingPackageHashes) {
+        if (name.startsWith(SparksConstants.STATE_LOG_FILE_NAME) || name.startsWith(SparksConstants.BOOT_RECORD_FILE_NAME)
+                || name.equals(SparksConstants.BLOB_STORE_FOLDER_NAME) || name.equals(SparksConstants.TRASH_FOLDER_NAME)) {
+            return true;
+        }
+
+        if (name.endsWith(SparksConstants.DOWNLOAD_FOLDER_SUFFIX)) {
+            String packageHash = name.substring(0, name.length() - SparksConstants.DOWNLOAD_FOLDER_SUFFIX.length());
+            return downloadingPackageHashes.contains(packageHash) || isDownloadResumable(packageHash);
+        }
+
+        if (name.endsWith(SparksConstants.STAGING_FOLDER_SUFFIX)) {
+            return downloadingPackageHashes.contains(name.substring(0, name.length() - SparksConstants.STAGING_FOLDER_SUFFIX.length()));
+        }
+
+        // A download moves its package folder into place before it completes, so the folder of a
+        // package being downloaded is needed as well.
+        return name.equals(getCurrentPackageHash()) || getRetainedPackageHashes().contains(name)
+                || name.equals(getPendingPackageHash()) || mDownloadedPackageHashes.contains(name)
+                || downloadingPackageHashes.contains(name);
+    }
+
+    // Moves everything in the Sparks folder that is no longer needed to the trash, such as what
+    // crashed downloads left behind, then enforces the storage quota, if there is one. Blobs only
+    // used by removed packages are deleted along with them.
+    public void collectGarbage() {
+        synchronized (mGarbageCollectionLock) {
+            Set<String> downloadingPackageHashes = getDownloadingPackageHashes();
+            SparksTrash trash = getTrash();
+            File[] sparksFiles = new File(getSparksPath()).listFiles();
+            if (sparksFiles != null) {
+                for (File sparksFile : sparksFiles) {
+                    if (!isSparksEntryInUse(sparksFile.getName(), downloadingPackageHashes)) {
+                        SparksUtils.log("Removing unused " + sparksFile.getName() + " from the Sparks folder");
+                        trash.delete(sparksFile.getPath());
+                    }
+                }
+            }
+
+            if (mStorageQuota > 0) {
+                enforceStorageQuota(downloadingPackageHashes);
+            }
+
+            collectBlobGarbage();
+        }
+    }
+
+    // Runs collectGarbage on the I/O lane, for callers such as a rollback at startup that must not
+    // wait for it to list and measure the Sparks folder. Requests made while one is still queued
+    // are served by it.
+    public void scheduleGarbageCollection() {
+        if (!mIsGarbageCollectionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        mExecutor.executeIoTask(new Runnable() {
+            @Override
+            public void run() {
+                mIsGarbageCollectionScheduled.set(false);
+                try {
+                    collectGarbage();
+                } catch (RuntimeException e) {
+                    // Tried again after the next install or download.
+                    SparksUtils.log(e);
+                }
+            }
+        });
+    }
+
+    // Gives up what can be rebuilt first: downloads that could have been resumed, then the
+    // retained packages, least recently current first.
+    private void enforceStorageQuota(Set<String> downloadingPackageHashes) {
+        long usedBytes = getUsedBytes();
+        File[] sparksFiles = new File(getSparksPath()).listFiles();
+        for (int i = 0; sparksFiles != null && i < sparksFiles.length && usedBytes > mStorageQuota; i++) {
+            String name = sparksFiles[i].getName();
+            if (name.endsWith(SparksConstants.DOWNLOAD_FOLDER_SUFFIX)
+                    && !downloadingPackageHashes.contains(name.substring(0, name.length() - SparksConstants.DOWNLOAD_FOLDER_SUFFIX.length()))) {
+                SparksUtils.log("Discarding the resumable download " + name + " to stay within the storage quota");
+                getTrash().delete(sparksFiles[i].getPath());
+                usedBytes = getUsedBytes();
+            }
+        }
+
+        while (usedBytes > mStorageQuota) {
+            synchronized (mRetainedPackagesLock) {
+                ArrayList<String> retainedPackageHashes = getRetainedPackageHashes();
+                if (retainedPackageHashes.isEmpty()) {
+                    break;
+                }
+
+                String evictedPackageHash = retainedPackageHashes.remove(0);
+                SparksUtils.log("Removing retained package " + evictedPackageHash + " to stay within the storage quota");
+                SparksStateStore.Editor editor = getStateStore().edit();
+                putRetainedPackageHashes(editor, retainedPackageHashes);
+                editor.commit();
+                getTrash().delete(getPackageFolderPath(evictedPackageHash));
+                invalidateMetadataCache();
+            }
+
+            usedBytes = getUsedBytes();
+        }
+
+        if (usedBytes > mStorageQuota) {
+            SparksUtils.log("Using " + usedBytes + " bytes, more than the storage quota of " + mStorageQuota + " bytes");
+        }
+    }
+
+    // Bytes used by the Sparks folder, not counting the blob store, whose files are all links to
+    // package files, or the trash, which is about to be emptied.
+    private long getUsedBytes() {
+        long usedBytes = 0;
+        File[] sparksFiles = new File(getSparksPath()).listFiles();
+        if (sparksFiles != null) {
+            for (File sparksFile : sparksFiles) {
+                if (!sparksFile.getName().equals(SparksConstants.BLOB_STORE_FOLDER_NAME) && !sparksFile.getName().equals(SparksConstants.TRASH_FOLDER_NAME)) {
+                    usedBytes += FileUtils.getSize(sparksFile);
+                }
+            }
+        }
+
+        return usedBytes;
+    }
+
+    // Reports the bytes used by each package folder, by everything else, and in total, as counted
+    // for the storage quota. Packages that share files through the blob store are each counted
+    // with all of their files.
+    public JSONObject getDiskUsage() {
+        JSONObject packages = new JSONObject();
+        long otherBytes = 0;
+        long totalBytes = 0;
+        File[] sparksFiles = new File(getSparksPath()).listFiles();
+        if (sparksFiles != null) {
+            for (File sparksFile : sparksFiles) {
+                String name = sparksFile.getName();
+                if (name.equals(SparksConstants.BLOB_STORE_FOLDER_NAME) || name.equals(SparksConstants.TRASH_FOLDER_NAME)) {
+                    continue;
+                }
+
+                long size = FileUtils.getSize(sparksFile);
+                totalBytes += size;
+                if (sparksFile.isDirectory() && !name.endsWith(SparksConstants.STAGING_FOLDER_SUFFIX)
+                        && !name.endsWith(SparksConstants.DOWNLOAD_FOLDER_SUFFIX) && !name.equals(SparksConstants.UNZIPPED_FOLDER_NAME)) {
+                    SparksUtils.setJSONValueForKey(packages, name, (double) size);
+                } else {
+                    otherBytes += size;
+                }
+            }
+        }
+
+        JSONObject diskUsage = new JSONObject();
+        SparksUtils.setJSONValueForKey(diskUsage, "packages", packages);
+        // As doubles, since the bridge has no 64-bit integers.
+        SparksUtils.setJSONValueForKey(diskUsage, "otherBytes", (double) otherBytes);
+        SparksUtils.setJSONValueForKey(diskUsage, "totalBytes", (double) totalBytes);
+        SparksUtils.setJSONValueForKey(diskUsage, "quotaBytes", (double) mStorageQuota);
+        return diskUsage;
+    }
+
+    // Deletes the blobs that are no longer used by any package left on disk. Package folders do
+    // not change once in place, so blobs can only have lost their last reference if one of the
+    // folders of the last sweep is gone, and the sweep, which reads every hash index and lists
+    // every blob, is skipped otherwise. Only called with mGarbageCollectionLock held.
+    private void collectBlobGarbage() {
+        ArrayList<String> packageFolderPaths = new ArrayList<>();
+        HashSet<String> packageFolderNames = new HashSet<>();
+        File[] sparksFiles = new File(getSparksPath()).listFiles();
+        if (sparksFiles != null) {
+            for (File sparksFile : sparksFiles) {
+                if (sparksFile.isDirectory() && !sparksFile.getName().equals(SparksConstants.BLOB_STORE_FOLDER_NAME)
+                        && !sparksFile.getName().equals(SparksConstants.TRASH_FOLDER_NAME)) {
+                    packageFolderPaths.add(sparksFile.getAbsolutePath());
+                    packageFolderNames.add(sparksFile.getName());
+                }
+            }
+        }
+
+        if (mBlobSweepFolderNames != null && packageFolderNames.containsAll(mBlobSweepFolderNames)) {
+            return;
+        }
+
+        getBlobStore().collectGarbage(packageFolderPaths);
+        mBlobSweepFolderNames = packageFolderNames;
     }
 
     private String getDocumentsDirectory() {
@@ -45,26 +378,167 @@ public class SparksUpdateManager {
         return SparksUtils.appendPathComponent(getSparksPath(), SparksConstants.STATUS_FILE);
     }
 
-    public JSONObject getCurrentPackageInfo() {
+    // Holds the current and previous package, as well as the settings of SettingsManager, so that
+    // changes to both can be committed together.
+    public synchronized SparksStateStore getStateStore() {
+        String logFilePath = SparksUtils.appendPathComponent(getSparksPath(), SparksConstants.STATE_LOG_FILE_NAME);
+        if (mStateStore == null || !mStateStore.getLogFilePath().equals(logFilePath)) {
+            mStateStore = new SparksStateStore(logFilePath);
+            importStatusFile(mStateStore);
+        }
+
+        return mStateStore;
+    }
+
+    // Moves the current and previous package over from the status file used before the state
+    // store. The store records that it was imported, so that a status file left behind by a crash
+    // before it was deleted is not imported again. The move is one-way: once the status file is
+    // deleted, a downgraded app no longer finds its current package.
+    private void importStatusFile(SparksStateStore stateStore) {
         String statusFilePath = getStatusFilePath();
         if (!FileUtils.fileAtPathExists(statusFilePath)) {
-            return new JSONObject();
+            return;
         }
 
-        try {
-            return SparksUtils.getJsonObjectFromFile(statusFilePath);
-        } catch (IOException e) {
-            // Should not happen.
-            throw new SparksUnknownException("Error getting current package info", e);
+        if (!stateStore.contains(SparksConstants.STATE_STATUS_FILE_IMPORTED_KEY)) {
+            JSONObject info;
+            try {
+                info = SparksUtils.getJsonObjectFromFile(statusFilePath);
+            } catch (IOException e) {
+                // Should not happen.
+                throw new SparksUnknownException("Error getting current package info", e);
+            }
+
+            SparksStateStore.Editor editor = stateStore.edit();
+            putCurrentPackageInfo(editor, info);
+            editor.putString(SparksConstants.STATE_STATUS_FILE_IMPORTED_KEY, "true");
+            editor.commit();
+        }
+
+        new File(statusFilePath).delete();
+    }
+
+    // Returns a copy of the cached metadata file, so that callers are free to modify it, or null
+    // if it is not cached.
+    private JSONObject getCachedMetadata(String filePath) {
+        synchronized (mMetadataLock) {
+            JSONObject metadata = mCachedMetadata.get(filePath);
+            return metadata != null ? copyJsonObject(metadata) : null;
+        }
+    }
+
+    private void cacheMetadata(String filePath, JSONObject metadata, long version) {
+        synchronized (mMetadataLock) {
+            if (version == mMetadataVersion) {
+                mCachedMetadata.put(filePath, copyJsonObject(metadata));
+            }
+        }
+    }
+
+    private long getMetadataVersion() {
+        synchronized (mMetadataLock) {
+            return mMetadataVersion;
+        }
+    }
+
+    // Must be called whenever package files change, e.g. when package folders are deleted.
+    private void invalidateMetadataCache() {
+        synchronized (mMetadataLock) {
+            mMetadataVersion++;
+            mCachedMetadata.clear();
+        }
+    }
+
+    private static JSONObject copyJsonObject(JSONObject json) {
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            SparksUtils.setJSONValueForKey(copy, key, json.opt(key));
         }
+
+        return copy;
+    }
+
+    public JSONObject getCurrentPackageInfo() {
+        SparksStateStore stateStore = getStateStore();
+        JSONObject info = new JSONObject();
+        SparksUtils.setJSONValueForKey(info, SparksConstants.CURRENT_PACKAGE_KEY, stateStore.getString(SparksConstants.CURRENT_PACKAGE_KEY));
+        SparksUtils.setJSONValueForKey(info, SparksConstants.PREVIOUS_PACKAGE_KEY, stateStore.getString(SparksConstants.PREVIOUS_PACKAGE_KEY));
+        return info;
     }
 
     public void updateCurrentPackageInfo(JSONObject packageInfo) {
+        SparksStateStore.Editor editor = getStateStore().edit();
+        putCurrentPackageInfo(editor, packageInfo);
+        editor.commit();
+    }
+
+    private static void putCurrentPackageInfo(SparksStateStore.Editor editor, JSONObject packageInfo) {
+        editor.putString(SparksConstants.CURRENT_PACKAGE_KEY, packageInfo.optString(SparksConstants.CURRENT_PACKAGE_KEY, null));
+        editor.putString(SparksConstants.PREVIOUS_PACKAGE_KEY, packageInfo.optString(SparksConstants.PREVIOUS_PACKAGE_KEY, null));
+    }
+
+    // Packages that were current before and are kept to roll back to or to activate again, least
+    // recently current first. The last one is the previous package.
+    public ArrayList<String> getRetainedPackageHashes() {
+        ArrayList<String> retainedPackageHashes = new ArrayList<>();
+        String retainedPackagesString = getStateStore().getString(SparksConstants.RETAINED_PACKAGES_KEY);
+        if (retainedPackagesString == null) {
+            // Kept by a version that only retained the previous package.
+            String previousPackageHash = getPreviousPackageHash();
+            if (previousPackageHash != null) {
+                retainedPackageHashes.add(previousPackageHash);
+            }
+
+            return retainedPackageHashes;
+        }
+
         try {
-            SparksUtils.writeJsonToFile(packageInfo, getStatusFilePath());
-        } catch (IOException e) {
-            // Should not happen.
-            throw new SparksUnknownException("Error updating current package info", e);
+            JSONArray retainedPackages = new JSONArray(retainedPackagesString);
+            for (int i = 0; i < retainedPackages.length(); i++) {
+                retainedPackageHashes.add(retainedPackages.getString(i));
+            }
+        } catch (JSONException e) {
+            throw new SparksMalformedDataException("Unable to parse retained packages " + retainedPackagesString, e);
+        }
+
+        return retainedPackageHashes;
+    }
+
+    // Also makes the most recently current of them the previous package.
+    private static void putRetainedPackageHashes(SparksStateStore.Editor editor, List<String> retainedPackageHashes) {
+        editor.putString(SparksConstants.RETAINED_PACKAGES_KEY, new JSONArray(retainedPackageHashes).toString());
+        editor.putString(SparksConstants.PREVIOUS_PACKAGE_KEY, retainedPackageHashes.isEmpty() ? null : retainedPackageHashes.get(retainedPackageHashes.size() - 1));
+    }
+
+    // Returns the metadata of the retained packages, most recently current first.
+    public JSONArray getRetainedPackages() {
+        JSONArray retainedPackages = new JSONArray();
+        ArrayList<String> retainedPackageHashes = getRetainedPackageHashes();
+        for (int i = retainedPackageHashes.size() - 1; i >= 0; i--) {
+            JSONObject retainedPackage = getPackage(retainedPackageHashes.get(i));
+            if (retainedPackage != null) {
+                retainedPackages.put(retainedPackage);
+            }
+        }
+
+        return retainedPackages;
+    }
+
+    // Makes a retained package current again without downloading it. Any changes already made in
+    // editor, such as the pending update, are committed along with it.
+    public void activatePackage(String packageHash, boolean removePendingUpdate, SparksStateStore.Editor editor) {
+        // Checked and installed under the lock, so that the storage quota cannot remove the package
+        // in between.
+        synchronized (mRetainedPackagesLock) {
+            JSONObject retainedPackage = getRetainedPackageHashes().contains(packageHash)
+                    && new File(getPackageFolderPath(packageHash)).isDirectory() ? getPackage(packageHash) : null;
+            if (retainedPackage == null) {
+                throw new SparksUnknownException("Package " + packageHash + " is not retained.");
+            }
+
+            installPackage(retainedPackage, removePendingUpdate, editor);
         }
     }
 
@@ -79,12 +553,14 @@ public class SparksUpdateManager {
     }
 
     public String getCurrentPackageBundlePath(String bundleFileName) {
-        String packageFolder = getCurrentPackageFolderPath();
-        if (packageFolder == null) {
+        // Reads the status once, so that the folder and the metadata belong to the same package.
+        String packageHash = getCurrentPackageHash();
+        if (packageHash == null) {
             return null;
         }
 
-        JSONObject currentPackage = getCurrentPackage();
+        String packageFolder = getPackageFolderPath(packageHash);
+        JSONObject currentPackage = getPackage(packageHash);
         if (currentPackage == null) {
             return null;
         }
@@ -97,6 +573,55 @@ public class SparksUpdateManager {
         }
     }
 
+    private File getBootRecordFile() {
+        return new File(getSparksPath(), SparksConstants.BOOT_RECORD_FILE_NAME);
+    }
+
+    public SparksBootRecord getBootRecord() {
+        return SparksBootRecord.read(getBootRecordFile());
+    }
+
+    public String getBootRecordBundlePath(SparksBootRecord bootRecord, String bundleFileName) {
+        String packageFolder = getPackageFolderPath(bootRecord.getPackageHash());
+        if (bootRecord.getRelativeBundlePath().isEmpty()) {
+            return SparksUtils.appendPathComponent(packageFolder, bundleFileName);
+        } else {
+            return SparksUtils.appendPathComponent(packageFolder, bootRecord.getRelativeBundlePath());
+        }
+    }
+
+    // Rewrites the boot record for the current package. Without a current package, or if its
+    // metadata lacks what the record holds, the record is removed and startup falls back to
+    // reading the status and package files.
+    public void updateBootRecord() {
+        deleteBootRecord();
+        JSONObject currentPackage = getCurrentPackage();
+        if (currentPackage == null) {
+            return;
+        }
+
+        String packageHash = currentPackage.optString(SparksConstants.PACKAGE_HASH_KEY, null);
+        String appVersion = currentPackage.optString("appVersion", null);
+        String binaryModifiedTime = currentPackage.optString(SparksConstants.BINARY_MODIFIED_TIME_KEY, null);
+        if (packageHash == null || !packageHash.equals(getCurrentPackageHash()) || appVersion == null || binaryModifiedTime == null) {
+            return;
+        }
+
+        try {
+            new SparksBootRecord(Long.parseLong(binaryModifiedTime), appVersion, packageHash,
+                    currentPackage.optString(SparksConstants.RELATIVE_BUNDLE_PATH_KEY, "")).write(getBootRecordFile());
+        } catch (NumberFormatException | IOException e) {
+            SparksUtils.log("Unable to write boot record: " + e.getMessage());
+        }
+    }
+
+    private void deleteBootRecord() {
+        File bootRecordFile = getBootRecordFile();
+        if (bootRecordFile.exists()) {
+            bootRecordFile.delete();
+        }
+    }
+
     public String getPackageFolderPath(String packageHash) {
         return SparksUtils.appendPathComponent(getSparksPath(), packageHash);
     }
@@ -132,74 +657,621 @@ public class SparksUpdateManager {
     public JSONObject getPackage(String packageHash) {
         String folderPath = getPackageFolderPath(packageHash);
         String packageFilePath = SparksUtils.appendPathComponent(folderPath, SparksConstants.PACKAGE_FILE_NAME);
+        JSONObject cachedPackage = getCachedMetadata(packageFilePath);
+        if (cachedPackage != null) {
+            return cachedPackage;
+        }
+
+        long version = getMetadataVersion();
         try {
-            return SparksUtils.getJsonObjectFromFile(packageFilePath);
+            JSONObject packageMetadata = SparksUtils.getJsonObjectFromFile(packageFilePath);
+            cacheMetadata(packageFilePath, packageMetadata, version);
+            return packageMetadata;
         } catch (IOException e) {
             return null;
         }
     }
 
+    private String getDownloadJournalPath(String packageHash) {
+        return SparksUtils.appendPathComponent(getDownloadFolderPath(packageHash), SparksConstants.DOWNLOAD_JOURNAL_FILE_NAME);
+    }
+
+    private JSONObject getDownloadJournal(String packageHash) {
+        String downloadJournalPath = getDownloadJournalPath(packageHash);
+        if (!FileUtils.fileAtPathExists(downloadJournalPath)) {
+            return null;
+        }
+
+        try {
+            return SparksUtils.getJsonObjectFromFile(downloadJournalPath);
+        } catch (IOException | SparksMalformedDataException e) {
+            // A torn journal only means that we cannot resume.
+            return null;
+        }
+    }
+
+    private void writeDownloadJournal(JSONObject downloadJournal, long bytesWritten) {
+        SparksUtils.setJSONValueForKey(downloadJournal, SparksConstants.DOWNLOAD_JOURNAL_BYTES_WRITTEN_KEY, bytesWritten);
+        try {
+            SparksUtils.writeJsonToFile(downloadJournal, getDownloadJournalPath(downloadJournal.optString(SparksConstants.PACKAGE_HASH_KEY, null)));
+        } catch (IOException e) {
+            SparksUtils.log("Unable to write download journal: " + e.getMessage());
+        }
+    }
+
+    private void deleteDownloadJournal(String packageHash) {
+        File downloadJournalFile = new File(getDownloadJournalPath(packageHash));
+        if (downloadJournalFile.exists()) {
+            downloadJournalFile.delete();
+        }
+    }
+
+    // Returns the number of bytes of the partially downloaded file that can be reused for the
+    // given package, truncating anything past the last journaled byte, or 0 if there is none.
+    private long getResumableDownloadOffset(JSONObject downloadJournal, String packageHash, String downloadUrl, File downloadFile) throws IOException {
+        if (downloadJournal == null || !downloadFile.exists()) {
+            return 0;
+        }
+
+        long bytesWritten = downloadJournal.optLong(SparksConstants.DOWNLOAD_JOURNAL_BYTES_WRITTEN_KEY, 0);
+        boolean hasValidator = downloadJournal.optString(SparksConstants.DOWNLOAD_JOURNAL_ETAG_KEY, null) != null
+                || downloadJournal.optString(SparksConstants.DOWNLOAD_JOURNAL_LAST_MODIFIED_KEY, null) != null;
+        if (packageHash == null
+                || !packageHash.equals(downloadJournal.optString(SparksConstants.PACKAGE_HASH_KEY, null))
+                || !downloadUrl.equals(downloadJournal.optString(SparksConstants.DOWNLOAD_URL_KEY, null))
+                || !hasValidator
+                || bytesWritten <= 0
+                || downloadFile.length() < bytesWritten) {
+            deleteDownloadJournal(packageHash);
+            return 0;
+        }
+
+        if (downloadFile.length() > bytesWritten) {
+            RandomAccessFile file = new RandomAccessFile(downloadFile, "rw");
+            try {
+                file.setLength(bytesWritten);
+            } finally {
+                file.close();
+            }
+        }
+
+        return bytesWritten;
+    }
+
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (url.openConnection());
+        connection.setConnectTimeout(mDownloadConnectTimeout);
+        connection.setReadTimeout(mDownloadReadTimeout);
+        return connection;
+    }
+
+    private HttpURLConnection openDownloadConnection(URL downloadUrl, long resumeOffset, JSONObject downloadJournal) throws IOException {
+        HttpURLConnection connection = openConnection(downloadUrl);
+        // Setting Accept-Encoding explicitly also stops HttpURLConnection from decoding gzip by
+        // itself, which would hide the encoded length.
+        if (mIsCompressedTransferEnabled && resumeOffset == 0) {
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        } else {
+            connection.setRequestProperty("Accept-Encoding", "identity");
+        }
+
+        if (resumeOffset > 0) {
+            String etag = downloadJournal.optString(SparksConstants.DOWNLOAD_JOURNAL_ETAG_KEY, null);
+            String lastModified = downloadJournal.optString(SparksConstants.DOWNLOAD_JOURNAL_LAST_MODIFIED_KEY, null);
+            connection.setRequestProperty("Range", "bytes=" + resumeOffset + "-");
+            // If-Range makes the server send the whole body instead when the package changed.
+            connection.setRequestProperty("If-Range", etag != null ? etag : lastModified);
+        }
+
+        return connection;
+    }
+
+    private void checkDownloadResponse(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        if (responseCode >= 400) {
+            throw new SparksHttpException(responseCode, parseRetryAfter(connection.getHeaderField("Retry-After")),
+                    "Server responded with " + responseCode + " " + connection.getResponseMessage());
+        }
+    }
+
+    // Returns the delay in milliseconds, or -1 if the header is missing or malformed. The header
+    // is either a number of seconds or an HTTP date.
+    private long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds.
+        }
+
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private boolean isResumedDownloadResponse(HttpURLConnection connection, long resumeOffset, JSONObject downloadJournal) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return false;
+        }
+
+        // Expected format: "bytes <start>-<end>/<size>"
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes " + resumeOffset + "-")) {
+            return false;
+        }
+
+        // Servers that ignore If-Range must not get to append a different representation.
+        String etag = downloadJournal.optString(SparksConstants.DOWNLOAD_JOURNAL_ETAG_KEY, null);
+        String lastModified = downloadJournal.optString(SparksConstants.DOWNLOAD_JOURNAL_LAST_MODIFIED_KEY, null);
+        if (etag != null && !etag.equals(connection.getHeaderField("ETag"))) {
+            return false;
+        }
+
+        return etag != null || lastModified.equals(connection.getHeaderField("Last-Modified"));
+    }
+
+    private boolean isContentEncoded(HttpURLConnection connection) {
+        String contentEncoding = connection.getContentEncoding();
+        return contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity");
+    }
+
+    // Returns the response body decoded according to its Content-Encoding.
+    private InputStream decodeContent(HttpURLConnection connection, InputStream body) throws IOException {
+        String contentEncoding = connection.getContentEncoding();
+        if (!isContentEncoded(connection)) {
+            return body;
+        } else if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(body, SparksConstants.DOWNLOAD_BUFFER_SIZE);
+        } else if (contentEncoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(body);
+        }
+
+        throw new SparksUnknownException("Unsupported Content-Encoding " + contentEncoding);
+    }
+
+    private void readFileHeader(File file, byte[] header) throws IOException {
+        FileInputStream fin = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int numBytesRead;
+            while (offset < header.length && (numBytesRead = fin.read(header, offset, header.length - offset)) >= 0) {
+                offset += numBytesRead;
+            }
+        } finally {
+            fin.close();
+        }
+    }
+
+    // Only downloads a package once at a time. A request for a package that is already being
+    // downloaded, e.g. by a sync on resume while a manual check is running, joins that download
+    // instead, and gets its progress and outcome. The metadata of the first request is kept.
+    // Returns right away. The package is downloaded on the I/O lane of the executor, which then
+    // calls the completion callbacks of all requests.
     public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName,
                                 DownloadProgressCallback progressCallback,
-                                String stringPublicKey) throws IOException {
+                                DownloadCompletionCallback completionCallback,
+                                String stringPublicKey) {
+        String packageHash = updatePackage.optString(SparksConstants.PACKAGE_HASH_KEY, null);
+        SparksDownloadFlight downloadFlight;
+        boolean isJoiningDownload;
+        synchronized (mDownloadFlights) {
+            downloadFlight = mDownloadFlights.get(packageHash);
+            isJoiningDownload = downloadFlight != null;
+            if (!isJoiningDownload) {
+                downloadFlight = new SparksDownloadFlight();
+                mDownloadFlights.put(packageHash, downloadFlight);
+            }
+        }
+
+        downloadFlight.addProgressCallback(progressCallback);
+        downloadFlight.addCompletionCallback(completionCallback);
+        if (isJoiningDownload) {
+            SparksUtils.log("Joining the download of " + packageHash + " that is already in progress");
+            return;
+        }
+
+        mExecutor.executeIoTask(new PackageDownload(updatePackage, expectedBundleFileName, stringPublicKey, downloadFlight));
+    }
+
+    // Runs the attempts at downloading a package on the I/O lane. A paused download gives up its
+    // thread, and is run again once it is resumed or cancelled. So does a failed download until
+    // its next attempt is due, unless it is cancelled first.
+    private class PackageDownload implements Runnable {
+
+        private final JSONObject mUpdatePackage;
+        private final String mExpectedBundleFileName;
+        private final String mStringPublicKey;
+        private final String mPackageHash;
+        private final SparksDownloadFlight mDownloadFlight;
+        private int mAttemptCount = 0;
+        private int mRetryCount = 0;
+
+        PackageDownload(JSONObject updatePackage, String expectedBundleFileName, String stringPublicKey, SparksDownloadFlight downloadFlight) {
+            mUpdatePackage = updatePackage;
+            mExpectedBundleFileName = expectedBundleFileName;
+            mStringPublicKey = stringPublicKey;
+            mPackageHash = updatePackage.optString(SparksConstants.PACKAGE_HASH_KEY, null);
+            mDownloadFlight = downloadFlight;
+        }
+
+        @Override
+        public void run() {
+            Throwable failure = null;
+            try {
+                if (mAttemptCount == 0) {
+                    // Also discards what interrupted downloads of other packages left behind, as
+                    // well as the shared download file and unzipped folder that were used before.
+                    collectGarbage();
+                }
+
+                if (!download()) {
+                    return;
+                }
+
+                mDownloadedPackageHashes.add(mPackageHash);
+            } catch (SparksDownloadCancelledException e) {
+                SparksUtils.log("Cancelled the download of " + mPackageHash);
+                failure = e;
+                getTrash().delete(getStagingFolderPath(mPackageHash));
+                getTrash().delete(getDownloadFolderPath(mPackageHash));
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } catch (Error e) {
+                complete(e);
+                throw e;
+            }
+
+            complete(failure);
+        }
+
+        // Returns false if the download was paused or is waiting to retry, and gave up its thread.
+        private boolean download() throws IOException {
+            while (true) {
+                SparksDownloadAttempt attempt = new SparksDownloadAttempt(mPackageHash, ++mAttemptCount, mDownloadFlight, mMinDownloadThroughput);
+                try {
+                    downloadPackageInternal(mUpdatePackage, mExpectedBundleFileName, attempt, attempt, mStringPublicKey);
+                    recordDownloadAttempt(attempt.describe(null, 0));
+                    return true;
+                } catch (SparksDownloadPausedException e) {
+                    // The connection is closed while paused. The journal lets the download
+                    // continue from the bytes written so far once it is run again.
+                    recordDownloadAttempt(attempt.describe(e, 0));
+                    SparksUtils.log("Paused the download of " + mPackageHash);
+                    if (mDownloadFlight.suspend(this)) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    long retryDelay = getDownloadRetryDelay(e, mRetryCount);
+                    boolean isRetrying = mRetryCount < mMaxDownloadRetries && retryDelay >= 0;
+                    recordDownloadAttempt(attempt.describe(e, isRetrying ? retryDelay : 0));
+                    if (!isRetrying) {
+                        throw e;
+                    }
+
+                    // Like after a pause, the journal lets the next attempt continue from the
+                    // bytes written so far.
+                    mRetryCount++;
+                    SparksUtils.log("Download attempt " + mAttemptCount + " of " + mPackageHash + " failed (" + e.getMessage()
+                            + "), retrying in " + retryDelay + " ms");
+                    if (mDownloadFlight.suspendForRetry(this)) {
+                        mExecutor.executeIoTaskDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                continueDownload(mDownloadFlight);
+                            }
+                        }, retryDelay);
+                        return false;
+                    }
+                } catch (RuntimeException e) {
+                    // E.g. an update that fails verification, which another attempt cannot fix.
+                    recordDownloadAttempt(attempt.describe(e, 0));
+                    throw e;
+                }
+            }
+        }
+
+        private void complete(Throwable failure) {
+            synchronized (mDownloadFlights) {
+                mDownloadFlights.remove(mPackageHash);
+            }
+
+            mDownloadFlight.complete(failure);
+        }
+    }
+
+    // Returns how long to wait before retrying after the failure, or -1 if it is not worth
+    // retrying. Waits grow exponentially, with jitter so that clients that failed together do not
+    // retry together, unless the server asked for a specific delay.
+    private long getDownloadRetryDelay(IOException failure, int retryCount) {
+        if (failure instanceof SparksDownloadCancelledException) {
+            return -1;
+        }
+
+        long retryAfter = -1;
+        if (failure instanceof SparksHttpException) {
+            SparksHttpException httpException = (SparksHttpException) failure;
+            if (!httpException.isRetryable()) {
+                return -1;
+            }
+
+            retryAfter = httpException.getRetryAfter();
+        }
+
+        // Rather than holding on to a download thread, a later sync tries again.
+        if (retryAfter > SparksConstants.DOWNLOAD_MAX_RETRY_DELAY) {
+            return -1;
+        }
+
+        long backoff = Math.min(SparksConstants.DOWNLOAD_MAX_RETRY_DELAY,
+                SparksConstants.DOWNLOAD_RETRY_BASE_DELAY << Math.min(retryCount, 16));
+        long delay;
+        synchronized (mRandom) {
+            delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        }
+
+        return Math.max(delay, retryAfter);
+    }
+
+    private void recordDownloadAttempt(JSONObject attempt) {
+        synchronized (mDownloadAttempts) {
+            mDownloadAttempts.addLast(attempt);
+            if (mDownloadAttempts.size() > MAX_DOWNLOAD_ATTEMPT_RECORDS) {
+                mDownloadAttempts.removeFirst();
+            }
+        }
+    }
+
+    // The latest download attempts, oldest first, including the ones that failed or were paused.
+    public JSONArray getDownloadAttempts() {
+        synchronized (mDownloadAttempts) {
+            return new JSONArray(mDownloadAttempts);
+        }
+    }
+
+    private SparksDownloadFlight getDownloadFlight(String packageHash) {
+        synchronized (mDownloadFlights) {
+            return mDownloadFlights.get(packageHash);
+        }
+    }
+
+    // Stops transferring the package at the next read, keeping what was written so far. Returns
+    // whether the package is being downloaded and is now paused.
+    public boolean pauseDownload(String packageHash) {
+        SparksDownloadFlight downloadFlight = getDownloadFlight(packageHash);
+        return downloadFlight != null && downloadFlight.pause();
+    }
+
+    // Returns whether the download of the package was paused.
+    public boolean resumeDownload(String packageHash) {
+        SparksDownloadFlight downloadFlight = getDownloadFlight(packageHash);
+        if (downloadFlight == null || !downloadFlight.resume()) {
+            return false;
+        }
+
+        SparksUtils.log("Resuming the download of " + packageHash);
+        continueDownload(downloadFlight);
+        return true;
+    }
+
+    // Runs a download that gave up its thread when it was paused, or to wait for a retry, again.
+    private void continueDownload(SparksDownloadFlight downloadFlight) {
+        Runnable suspendedDownload = downloadFlight.takeSuspendedDownload();
+        if (suspendedDownload != null) {
+            mExecutor.executeIoTask(suspendedDownload);
+        }
+    }
+
+    // Makes the download of the package fail with a SparksDownloadCancelledException at its next
+    // read, or, if it is paused or waiting to retry, once it is run again right away to clean up.
+    // Returns whether the package was being downloaded.
+    public boolean cancelDownload(String packageHash) {
+        SparksDownloadFlight downloadFlight = getDownloadFlight(packageHash);
+        if (downloadFlight == null) {
+            return false;
+        }
+
+        downloadFlight.cancel();
+        continueDownload(downloadFlight);
+        return true;
+    }
+
+    private void downloadPackageInternal(JSONObject updatePackage, String expectedBundleFileName,
+                                         final DownloadProgressCallback progressCallback,
+                                         final DownloadCheckpoint checkpoint,
+                                         String stringPublicKey) throws IOException {
+        // A download that is run again after a pause may have been cancelled or paused again.
+        checkpoint.check();
         String newUpdateHash = updatePackage.optString(SparksConstants.PACKAGE_HASH_KEY, null);
         String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
-        String newUpdateMetadataPath = SparksUtils.appendPathComponent(newUpdateFolderPath, SparksConstants.PACKAGE_FILE_NAME);
+        // The package is assembled and verified in a staging folder next to its final folder, and
+        // only moved into place once it is complete.
+        String stagingFolderPath = getStagingFolderPath(newUpdateHash);
+        String stagingMetadataPath = SparksUtils.appendPathComponent(stagingFolderPath, SparksConstants.PACKAGE_FILE_NAME);
+        JSONObject retainedPackage = getRetainedPackageHashes().contains(newUpdateHash) ? getPackage(newUpdateHash) : null;
+        if (retainedPackage != null) {
+            // Retained packages were verified when they were installed, so only the metadata,
+            // e.g. of another deployment releasing the same package, needs to be updated.
+            SparksUtils.log("Reusing retained package " + newUpdateHash + " instead of downloading it");
+            String relativeBundlePath = retainedPackage.optString(SparksConstants.RELATIVE_BUNDLE_PATH_KEY, null);
+            if (relativeBundlePath != null) {
+                SparksUtils.setJSONValueForKey(updatePackage, SparksConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+            }
+
+            SparksUtils.writeJsonToFile(updatePackage, SparksUtils.appendPathComponent(newUpdateFolderPath, SparksConstants.PACKAGE_FILE_NAME));
+            invalidateMetadataCache();
+            return;
+        }
+
         if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
             // This removes any stale data in newPackageFolderPath that could have been left
             // uncleared due to a crash or error during the download or install process.
-            FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+            getTrash().delete(newUpdateFolderPath);
         }
 
+        // Left behind by an interrupted download of this package, which garbage collection keeps
+        // while the package is being downloaded.
+        if (FileUtils.fileAtPathExists(stagingFolderPath)) {
+            getTrash().delete(stagingFolderPath);
+        }
+
+        // The folder of this package, and so its metadata, is replaced.
+        invalidateMetadataCache();
+
         String downloadUrlString = updatePackage.optString(SparksConstants.DOWNLOAD_URL_KEY, null);
         HttpURLConnection connection = null;
         BufferedInputStream bin = null;
         FileOutputStream fos = null;
         BufferedOutputStream bout = null;
         File downloadFile = null;
+        JSONObject downloadJournal = null;
+        long receivedBytes = 0;
+        boolean isDownloadComplete = false;
         boolean isZip = false;
+        boolean isExtractedWhileDownloading = false;
+        boolean isDiffUpdate = false;
+        // Hashes of the package files computed while they are written, so verification does not
+        // have to read them back.
+        final HashMap<String, String> fileHashes = new HashMap<>();
 
         // Download the file while checking if it is a zip and notifying client of progress.
         try {
             URL downloadUrl = new URL(downloadUrlString);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
-            connection.setRequestProperty("Accept-Encoding", "identity");
-            bin = new BufferedInputStream(connection.getInputStream());
-
-            long totalBytes = connection.getContentLength();
-            long receivedBytes = 0;
-
-            File downloadFolder = new File(getSparksPath());
+            File downloadFolder = new File(getDownloadFolderPath(newUpdateHash));
             downloadFolder.mkdirs();
             downloadFile = new File(downloadFolder, SparksConstants.DOWNLOAD_FILE_NAME);
-            fos = new FileOutputStream(downloadFile);
-            bout = new BufferedOutputStream(fos, SparksConstants.DOWNLOAD_BUFFER_SIZE);
-            byte[] data = new byte[SparksConstants.DOWNLOAD_BUFFER_SIZE];
-            byte[] header = new byte[4];
 
-            int numBytesRead = 0;
-            while ((numBytesRead = bin.read(data, 0, SparksConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
-                if (receivedBytes < 4) {
-                    for (int i = 0; i < numBytesRead; i++) {
-                        int headerOffset = (int) (receivedBytes) + i;
-                        if (headerOffset >= 4) {
-                            break;
+            // Continue an interrupted download of the same package if the server still has
+            // the same representation of it, otherwise start over from the first byte.
+            JSONObject previousDownloadJournal = getDownloadJournal(newUpdateHash);
+            long resumeOffset = getResumableDownloadOffset(previousDownloadJournal, newUpdateHash, downloadUrlString, downloadFile);
+            connection = openDownloadConnection(downloadUrl, resumeOffset, previousDownloadJournal);
+            if (resumeOffset > 0 && !isResumedDownloadResponse(connection, resumeOffset, previousDownloadJournal)) {
+                SparksUtils.log("Server did not resume the interrupted download, restarting it.");
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    connection.disconnect();
+                    connection = openDownloadConnection(downloadUrl, 0, null);
+                }
+
+                resumeOffset = 0;
+            } else if (resumeOffset > 0) {
+                SparksUtils.log("Resuming download from byte " + resumeOffset + ".");
+            }
+
+            checkDownloadResponse(connection);
+
+            // Ranges of an encoded body do not map to ranges of the package, so an encoded download
+            // can be neither resumed nor segmented, and going through download.zip is of no use.
+            if ((mIsStreamingExtractionEnabled || isContentEncoded(connection)) && resumeOffset == 0) {
+                // Nothing of a previous attempt can be reused, so skip download.zip altogether.
+                deleteDownloadJournal(newUpdateHash);
+                if (downloadFile.exists()) {
+                    downloadFile.delete();
+                }
+
+                isZip = extractWhileDownloading(connection, stagingFolderPath, expectedBundleFileName, progressCallback, checkpoint, fileHashes);
+                isExtractedWhileDownloading = true;
+            } else {
+                final long totalBytes = resumeOffset + connection.getContentLength();
+                receivedBytes = resumeOffset;
+
+                byte[] header = new byte[4];
+                if (resumeOffset > 0) {
+                    readFileHeader(downloadFile, header);
+                }
+
+                downloadJournal = new JSONObject();
+                SparksUtils.setJSONValueForKey(downloadJournal, SparksConstants.PACKAGE_HASH_KEY, newUpdateHash);
+                SparksUtils.setJSONValueForKey(downloadJournal, SparksConstants.DOWNLOAD_URL_KEY, downloadUrlString);
+                SparksUtils.setJSONValueForKey(downloadJournal, SparksConstants.DOWNLOAD_JOURNAL_ETAG_KEY, connection.getHeaderField("ETag"));
+                SparksUtils.setJSONValueForKey(downloadJournal, SparksConstants.DOWNLOAD_JOURNAL_LAST_MODIFIED_KEY, connection.getHeaderField("Last-Modified"));
+                writeDownloadJournal(downloadJournal, receivedBytes);
+
+                if (SparksSegmentedDownloader.isSupported(connection, mMaxDownloadConnections, SparksConstants.SEGMENTED_DOWNLOAD_MIN_SIZE)) {
+                    final JSONObject segmentedDownloadJournal = downloadJournal;
+                    SparksSegmentedDownloader segmentedDownloader = new SparksSegmentedDownloader(downloadUrl, downloadFile,
+                            resumeOffset, totalBytes, SparksSegmentedDownloader.getValidator(connection), mMaxDownloadConnections,
+                            mDownloadConnectTimeout, mDownloadReadTimeout,
+                            new SparksSegmentedDownloader.Listener() {
+                                private long journaledBytes = 0;
+
+                                @Override
+                                public void onProgress(long totalBytes, long receivedBytes, long contiguousBytes) {
+                                    if (contiguousBytes - journaledBytes >= SparksConstants.DOWNLOAD_JOURNAL_INTERVAL) {
+                                        writeDownloadJournal(segmentedDownloadJournal, contiguousBytes);
+                                        journaledBytes = contiguousBytes;
+                                    }
+
+                                    progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+                                }
+
+                                @Override
+                                public void checkpoint() throws IOException {
+                                    checkpoint.check();
+                                }
+                            });
+                    try {
+                        segmentedDownloader.download(connection);
+                    } finally {
+                        // Segments past the first gap are discarded if the download is resumed.
+                        receivedBytes = segmentedDownloader.getContiguousBytes();
+                    }
+
+                    readFileHeader(downloadFile, header);
+                } else {
+                    bin = new BufferedInputStream(connection.getInputStream());
+                    fos = new FileOutputStream(downloadFile, resumeOffset > 0);
+                    bout = new BufferedOutputStream(fos, SparksConstants.DOWNLOAD_BUFFER_SIZE);
+                    byte[] data = new byte[SparksConstants.DOWNLOAD_BUFFER_SIZE];
+                    long journaledBytes = receivedBytes;
+
+                    int numBytesRead = 0;
+                    while ((numBytesRead = bin.read(data, 0, SparksConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+                        if (receivedBytes < 4) {
+                            for (int i = 0; i < numBytesRead; i++) {
+                                int headerOffset = (int) (receivedBytes) + i;
+                                if (headerOffset >= 4) {
+                                    break;
+                                }
+
+                                header[headerOffset] = data[i];
+                            }
+                        }
+
+                        receivedBytes += numBytesRead;
+                        bout.write(data, 0, numBytesRead);
+                        if (receivedBytes - journaledBytes >= SparksConstants.DOWNLOAD_JOURNAL_INTERVAL) {
+                            // Only journal bytes that have actually been handed to the file.
+                            bout.flush();
+                            writeDownloadJournal(downloadJournal, receivedBytes);
+                            journaledBytes = receivedBytes;
                         }
 
-                        header[headerOffset] = data[i];
+                        progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+                        checkpoint.check();
                     }
-                }
 
-                receivedBytes += numBytesRead;
-                bout.write(data, 0, numBytesRead);
-                progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
-            }
+                    if (totalBytes != receivedBytes) {
+                        if (receivedBytes > totalBytes) {
+                            // Only a truncated body is a prefix of the package that is worth resuming.
+                            deleteDownloadJournal(newUpdateHash);
+                            downloadJournal = null;
+                        }
 
-            if (totalBytes != receivedBytes) {
-                throw new SparksUnknownException("Received " + receivedBytes + " bytes, expected " + totalBytes);
+                        // An IOException, since the connection was most likely cut short.
+                        throw new IOException("Received " + receivedBytes + " bytes, expected " + totalBytes);
+                    }
+                }
+
+                isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
             }
 
-            isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
+            isDownloadComplete = true;
         } catch (MalformedURLException e) {
             throw new SparksMalformedDataException(downloadUrlString, e);
         } finally {
@@ -211,40 +1283,53 @@ public class SparksUpdateManager {
             } catch (IOException e) {
                 throw new SparksUnknownException("Error closing IO resources.", e);
             }
+
+            if (isDownloadComplete) {
+                deleteDownloadJournal(newUpdateHash);
+            } else if (downloadJournal != null) {
+                // Record how far we got so that the next attempt can continue from here.
+                writeDownloadJournal(downloadJournal, receivedBytes);
+            }
         }
 
-        if (isZip) {
+        if (isZip && !isExtractedWhileDownloading) {
             // Unzip the downloaded file and then delete the zip
-            String unzippedFolderPath = getUnzippedFolderPath();
-            FileUtils.unzipFile(downloadFile, unzippedFolderPath);
+            FileUtils.unzipFile(downloadFile, stagingFolderPath, fileHashes);
             FileUtils.deleteFileOrFolderSilently(downloadFile);
+        }
 
-            // Merge contents with current update based on the manifest
-            String diffManifestFilePath = SparksUtils.appendPathComponent(unzippedFolderPath,
+        if (isZip) {
+            // The update contents are in the staging folder, so only the files carried over from
+            // the current package are left to merge in, based on the manifest.
+            String diffManifestFilePath = SparksUtils.appendPathComponent(stagingFolderPath,
                     SparksConstants.DIFF_MANIFEST_FILE_NAME);
-            boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
+            isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
             if (isDiffUpdate) {
                 String currentPackageFolderPath = getCurrentPackageFolderPath();
-                SparksUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath);
+                SparksUpdateUtils.copyMissingFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, stagingFolderPath, fileHashes);
                 File diffManifestFile = new File(diffManifestFilePath);
                 diffManifestFile.delete();
             }
 
-            FileUtils.copyDirectoryContents(unzippedFolderPath, newUpdateFolderPath);
-            FileUtils.deleteFileAtPathSilently(unzippedFolderPath);
-
             // For zip updates, we need to find the relative path to the jsBundle and save it in the
             // metadata so that we can find and run it easily the next time.
-            String relativeBundlePath = SparksUpdateUtils.findJSBundleInUpdateContents(newUpdateFolderPath, expectedBundleFileName);
+            String relativeBundlePath = SparksUpdateUtils.findJSBundleInUpdateContents(stagingFolderPath, expectedBundleFileName);
 
             if (relativeBundlePath == null) {
                 throw new SparksInvalidUpdateException("Update is invalid - A JS bundle file named \"" + expectedBundleFileName + "\" could not be found within the downloaded contents. Please check that you are releasing your Sparks updates using the exact same JS bundle file name that was shipped with your app's binary.");
             } else {
-                if (FileUtils.fileAtPathExists(newUpdateMetadataPath)) {
-                    File metadataFileFromOldUpdate = new File(newUpdateMetadataPath);
+                if (FileUtils.fileAtPathExists(stagingMetadataPath)) {
+                    File metadataFileFromOldUpdate = new File(stagingMetadataPath);
                     metadataFileFromOldUpdate.delete();
                 }
 
+                // A diff update carries over the file hash index of the current package too, which
+                // is not part of the update contents.
+                File fileHashIndexFromOldUpdate = new File(stagingFolderPath, SparksConstants.PACKAGE_HASH_INDEX_FILE_NAME);
+                if (fileHashIndexFromOldUpdate.exists()) {
+                    fileHashIndexFromOldUpdate.delete();
+                }
+
                 if (isDiffUpdate) {
                     SparksUtils.log("Applying diff update.");
                 } else {
@@ -253,13 +1338,13 @@ public class SparksUpdateManager {
 
                 boolean isSignatureVerificationEnabled = (stringPublicKey != null);
 
-                String signaturePath = SparksUpdateUtils.getSignatureFilePath(newUpdateFolderPath);
+                String signaturePath = SparksUpdateUtils.getSignatureFilePath(stagingFolderPath);
                 boolean isSignatureAppearedInBundle = FileUtils.fileAtPathExists(signaturePath);
 
                 if (isSignatureVerificationEnabled) {
                     if (isSignatureAppearedInBundle) {
-                        SparksUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
-                        SparksUpdateUtils.verifyUpdateSignature(newUpdateFolderPath, newUpdateHash, stringPublicKey);
+                        SparksUpdateUtils.verifyFolderHash(stagingFolderPath, newUpdateHash, fileHashes);
+                        SparksUpdateUtils.verifyUpdateSignature(stagingFolderPath, newUpdateHash, stringPublicKey);
                     } else {
                         throw new SparksInvalidUpdateException(
                                 "Error! Public key was provided but there is no JWT signature within app bundle to verify. " +
@@ -274,60 +1359,174 @@ public class SparksUpdateManager {
                                 "Warning! JWT signature exists in Sparks update but code integrity check couldn't be performed because there is no public key configured. " +
                                 "Please ensure that public key is properly configured within your application."
                         );
-                        SparksUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                        SparksUpdateUtils.verifyFolderHash(stagingFolderPath, newUpdateHash, fileHashes);
                     } else {
                         if (isDiffUpdate) {
-                            SparksUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                            SparksUpdateUtils.verifyFolderHash(stagingFolderPath, newUpdateHash, fileHashes);
                         }
                     }
                 }
 
                 SparksUtils.setJSONValueForKey(updatePackage, SparksConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+                // Files linked to existing blobs take over their modification time, so the index is
+                // written afterwards.
+                getBlobStore().addPackageFiles(stagingFolderPath, fileHashes);
+                SparksUpdateUtils.writeFileHashIndex(stagingFolderPath, fileHashes);
             }
-        } else {
+        } else if (!isExtractedWhileDownloading) {
             // File is a jsbundle, move it to a folder with the packageHash as its name
-            FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
+            FileUtils.moveFile(downloadFile, stagingFolderPath, expectedBundleFileName);
         }
 
         // Save metadata to the folder.
-        SparksUtils.writeJsonToFile(updatePackage, newUpdateMetadataPath);
+        SparksUtils.writeJsonToFile(updatePackage, stagingMetadataPath);
+
+        // Promote the complete package with a single rename, so that its folder either does not
+        // exist or holds a verified package.
+        if (!new File(stagingFolderPath).renameTo(new File(newUpdateFolderPath))) {
+            FileUtils.deleteDirectoryAtPath(stagingFolderPath);
+            throw new SparksUnknownException("Unable to move staged package to " + newUpdateFolderPath + ".");
+        }
+
+        FileUtils.deleteFileOrFolderSilently(new File(getDownloadFolderPath(newUpdateHash)));
     }
 
-    public void installPackage(JSONObject updatePackage, boolean removePendingUpdate) {
-        String packageHash = updatePackage.optString(SparksConstants.PACKAGE_HASH_KEY, null);
-        JSONObject info = getCurrentPackageInfo();
+    // Feeds the response body straight into the package folder, either through the zip decoder or,
+    // for a plain JS bundle, into the bundle file. Returns whether the body was a zip archive.
+    // Progress and the length check go by the bytes received over the wire, before any content
+    // decoding.
+    private boolean extractWhileDownloading(HttpURLConnection connection, String newUpdateFolderPath, String expectedBundleFileName,
+                                            DownloadProgressCallback progressCallback, DownloadCheckpoint checkpoint,
+                                            Map<String, String> fileHashes) throws IOException {
+        long totalBytes = connection.getContentLength();
+        DownloadProgressInputStream progressStream = null;
+        BufferedInputStream bin = null;
+        FileOutputStream fos = null;
+        boolean isZip;
+        try {
+            progressStream = new DownloadProgressInputStream(connection.getInputStream(), totalBytes, progressCallback, checkpoint);
+            bin = new BufferedInputStream(decodeContent(connection, progressStream), SparksConstants.DOWNLOAD_BUFFER_SIZE);
 
-        String currentPackageHash = info.optString(SparksConstants.CURRENT_PACKAGE_KEY, null);
-        if (packageHash != null && packageHash.equals(currentPackageHash)) {
-            // The current package is already the one being installed, so we should no-op.
-            return;
+            byte[] header = new byte[4];
+            bin.mark(header.length);
+            int headerLength = 0;
+            int numBytesRead;
+            while (headerLength < header.length && (numBytesRead = bin.read(header, headerLength, header.length - headerLength)) >= 0) {
+                headerLength += numBytesRead;
+            }
+
+            bin.reset();
+            isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
+
+            if (isZip) {
+                FileUtils.unzipStream(bin, newUpdateFolderPath, fileHashes);
+            } else {
+                File newUpdateFolder = new File(newUpdateFolderPath);
+                newUpdateFolder.mkdirs();
+                fos = new FileOutputStream(new File(newUpdateFolder, expectedBundleFileName));
+                byte[] data = new byte[SparksConstants.DOWNLOAD_BUFFER_SIZE];
+                while ((numBytesRead = bin.read(data, 0, SparksConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+                    fos.write(data, 0, numBytesRead);
+                }
+            }
+        } finally {
+            try {
+                if (fos != null) fos.close();
+                if (bin != null) bin.close();
+            } catch (IOException e) {
+                throw new SparksUnknownException("Error closing IO resources.", e);
+            }
         }
 
-        if (removePendingUpdate) {
-            String currentPackageFolderPath = getCurrentPackageFolderPath();
-            if (currentPackageFolderPath != null) {
-                FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
+        // Encoded responses are often sent chunked, without a length. The decoder then validates the
+        // body instead, e.g. against the gzip trailer.
+        boolean isLengthKnown = totalBytes >= 0 || !isContentEncoded(connection);
+        if (isLengthKnown && totalBytes != progressStream.getReceivedBytes()) {
+            throw new IOException("Received " + progressStream.getReceivedBytes() + " bytes, expected " + totalBytes);
+        }
+
+        return isZip;
+    }
+
+    public void installPackage(JSONObject updatePackage, boolean removePendingUpdate) {
+        installPackage(updatePackage, removePendingUpdate, getStateStore().edit());
+    }
+
+    // Any changes already made in editor, such as the new pending update, are committed together
+    // with the new current package.
+    public void installPackage(JSONObject updatePackage, boolean removePendingUpdate, SparksStateStore.Editor editor) {
+        synchronized (mRetainedPackagesLock) {
+            String packageHash = updatePackage.optString(SparksConstants.PACKAGE_HASH_KEY, null);
+            JSONObject info = getCurrentPackageInfo();
+
+            String currentPackageHash = info.optString(SparksConstants.CURRENT_PACKAGE_KEY, null);
+            if (packageHash != null && packageHash.equals(currentPackageHash)) {
+                // The current package is already the one being installed, so we should no-op.
+                editor.commit();
+                return;
             }
-        } else {
-            String previousPackageHash = getPreviousPackageHash();
-            if (previousPackageHash != null && !previousPackageHash.equals(packageHash)) {
-                FileUtils.deleteDirectoryAtPath(getPackageFolderPath(previousPackageHash));
+
+            ArrayList<String> retainedPackageHashes = getRetainedPackageHashes();
+            retainedPackageHashes.remove(packageHash);
+            ArrayList<String> discardedPackageHashes = new ArrayList<>();
+            if (currentPackageHash != null) {
+                if (removePendingUpdate) {
+                    // The current package never finished loading, so it is not worth keeping.
+                    discardedPackageHashes.add(currentPackageHash);
+                } else {
+                    retainedPackageHashes.add(currentPackageHash);
+                }
             }
 
-            SparksUtils.setJSONValueForKey(info, SparksConstants.PREVIOUS_PACKAGE_KEY, info.optString(SparksConstants.CURRENT_PACKAGE_KEY, null));
+            while (retainedPackageHashes.size() > mRetainedPackageCount) {
+                discardedPackageHashes.add(retainedPackageHashes.remove(0));
+            }
+
+            invalidateMetadataCache();
+            // Removed first, so that a crash before the new record is written cannot leave behind a
+            // record that disagrees with the state store.
+            deleteBootRecord();
+            SparksUtils.setJSONValueForKey(info, SparksConstants.CURRENT_PACKAGE_KEY, packageHash);
+            putCurrentPackageInfo(editor, info);
+            putRetainedPackageHashes(editor, retainedPackageHashes);
+            editor.commit();
+            // Only deleted once nothing refers to them anymore.
+            for (String discardedPackageHash : discardedPackageHashes) {
+                getTrash().delete(getPackageFolderPath(discardedPackageHash));
+            }
         }
 
-        SparksUtils.setJSONValueForKey(info, SparksConstants.CURRENT_PACKAGE_KEY, packageHash);
-        updateCurrentPackageInfo(info);
+        invalidateMetadataCache();
+        updateBootRecord();
+        scheduleGarbageCollection();
     }
 
     public void rollbackPackage() {
-        JSONObject info = getCurrentPackageInfo();
-        String currentPackageFolderPath = getCurrentPackageFolderPath();
-        FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
-        SparksUtils.setJSONValueForKey(info, SparksConstants.CURRENT_PACKAGE_KEY, info.optString(SparksConstants.PREVIOUS_PACKAGE_KEY, null));
-        SparksUtils.setJSONValueForKey(info, SparksConstants.PREVIOUS_PACKAGE_KEY, null);
-        updateCurrentPackageInfo(info);
+        rollbackPackage(getStateStore().edit());
+    }
+
+    // Any changes already made in editor, such as recording the failed update, are committed
+    // together with the rollback.
+    public void rollbackPackage(SparksStateStore.Editor editor) {
+        synchronized (mRetainedPackagesLock) {
+            JSONObject info = getCurrentPackageInfo();
+            String currentPackageFolderPath = getCurrentPackageFolderPath();
+            // Steps back to the most recently current of the retained packages, which in turn makes
+            // the one before it the previous package.
+            ArrayList<String> retainedPackageHashes = getRetainedPackageHashes();
+            String rolledBackToPackageHash = retainedPackageHashes.isEmpty() ? null : retainedPackageHashes.remove(retainedPackageHashes.size() - 1);
+            invalidateMetadataCache();
+            deleteBootRecord();
+            SparksUtils.setJSONValueForKey(info, SparksConstants.CURRENT_PACKAGE_KEY, rolledBackToPackageHash);
+            putCurrentPackageInfo(editor, info);
+            putRetainedPackageHashes(editor, retainedPackageHashes);
+            editor.commit();
+            getTrash().delete(currentPackageFolderPath);
+        }
+
+        invalidateMetadataCache();
+        updateBootRecord();
+        scheduleGarbageCollection();
     }
 
     public void downloadAndReplaceCurrentBundle(String remoteBundleUrl, String bundleFileName) throws IOException {
@@ -338,7 +1537,7 @@ public class SparksUpdateManager {
         BufferedOutputStream bout = null;
         try {
             downloadUrl = new URL(remoteBundleUrl);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
+            connection = openConnection(downloadUrl);
             bin = new BufferedInputStream(connection.getInputStream());
             File downloadFile = new File(getCurrentPackageBundlePath(bundleFileName));
             downloadFile.delete();
@@ -364,6 +1563,32 @@ public class SparksUpdateManager {
     }
 
     public void clearUpdates() {
-        FileUtils.deleteDirectoryAtPath(getSparksPath());
+        clearUpdates(getStateStore().edit());
+    }
+
+    // Any changes already made in editor are committed together with clearing the current and
+    // previous package. The state log itself is kept, as it also holds settings such as the
+    // latest rollback.
+    public void clearUpdates(SparksStateStore.Editor editor) {
+        SparksStateStore stateStore = getStateStore();
+        deleteBootRecord();
+        editor.remove(SparksConstants.CURRENT_PACKAGE_KEY);
+        editor.remove(SparksConstants.PREVIOUS_PACKAGE_KEY);
+        editor.remove(SparksConstants.RETAINED_PACKAGES_KEY);
+        synchronized (mRetainedPackagesLock) {
+            editor.commit();
+        }
+
+        SparksTrash trash = getTrash();
+        File[] sparksFiles = new File(getSparksPath()).listFiles();
+        if (sparksFiles != null) {
+            for (File sparksFile : sparksFiles) {
+                if (!sparksFile.getPath().equals(stateStore.getLogFilePath()) && !sparksFile.getName().equals(SparksConstants.TRASH_FOLDER_NAME)) {
+                    trash.delete(sparksFile.getPath());
+                }
+            }
+        }
+
+        invalidateMetadataCache();
     }
 }
@@ -1,6 +1,7 @@
 package com.marf.sparks.react;
 
 import android.content.Context;
+import android.os.Process;
 import android.util.Base64;
 
 import java.security.interfaces.*;
@@ -16,7 +17,6 @@ import org.json.JSONObject;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
@@ -27,12 +27,32 @@ import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SparksUpdateUtils {
 
     public static final String NEW_LINE = System.getProperty("line.separator");
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int HASH_BUFFER_SIZE = 1024 * 64;
+    // Folders with fewer files to hash than this are not worth handing over to the hashing pool.
+    private static final int PARALLEL_HASHING_MIN_FILES = 8;
+    private static final int MAX_HASHING_THREADS = 4;
+    private static final long HASHING_KEEP_ALIVE_SECONDS = 30;
+
+    // A plain thread pool rather than a ForkJoinPool, which needs API 21.
+    private static ThreadPoolExecutor sHashingPool;
+
     // Note: The hashing logic here must mirror the hashing logic in other native SDK's, as well as in the
     // CLI. Ensure that any changes here are propagated to these other locations.
     public static boolean isHashIgnored(String relativeFilePath) {
@@ -47,7 +67,10 @@ public class SparksUpdateUtils {
                 || relativeFilePath.endsWith("/" + Sparks_METADATA);
     }
 
-    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, ArrayList<String> manifest) {
+    // Adds the files of the folder with a known hash to the manifest, and collects the others, with
+    // their relative paths, into filesToHash.
+    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, ArrayList<String> manifest, Map<String, String> knownFileHashes,
+                                                      ArrayList<String> relativePathsToHash, ArrayList<File> filesToHash) {
         File folder = new File(folderPath);
         File[] folderFiles = folder.listFiles();
         for (File file : folderFiles) {
@@ -60,27 +83,148 @@ public class SparksUpdateUtils {
             }
 
             if (file.isDirectory()) {
-                addContentsOfFolderToManifest(fullFilePath, relativePath, manifest);
+                addContentsOfFolderToManifest(fullFilePath, relativePath, manifest, knownFileHashes, relativePathsToHash, filesToHash);
+            } else if (knownFileHashes != null && knownFileHashes.containsKey(relativePath)) {
+                manifest.add(relativePath + ":" + knownFileHashes.get(relativePath));
             } else {
-                try {
-                    manifest.add(relativePath + ":" + computeHash(new FileInputStream(file)));
-                } catch (FileNotFoundException e) {
-                    // Should not happen.
-                    throw new SparksUnknownException("Unable to compute hash of update contents.", e);
+                relativePathsToHash.add(relativePath);
+                filesToHash.add(file);
+            }
+        }
+    }
+
+    private static int getHashingThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_HASHING_THREADS));
+    }
+
+    private static synchronized ThreadPoolExecutor getHashingPool() {
+        if (sHashingPool == null) {
+            int threadCount = getHashingThreadCount();
+            sHashingPool = new ThreadPoolExecutor(threadCount, threadCount, HASHING_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), SparksExecutor.newThreadFactory("SparksHash", Process.THREAD_PRIORITY_BACKGROUND));
+            // Idle, the pool does not keep any threads around.
+            sHashingPool.allowCoreThreadTimeOut(true);
+        }
+
+        return sHashingPool;
+    }
+
+    // Returns the hashes of the given files, in the same order. If there are enough files, they are
+    // hashed by up to threadCount threads, the calling thread and tasks on the hashing pool.
+    static String[] computeFileHashes(final List<File> files, int threadCount) {
+        final String[] hashes = new String[files.size()];
+        if (threadCount <= 1 || files.size() < PARALLEL_HASHING_MIN_FILES) {
+            hashFiles(files, hashes, new AtomicInteger());
+            return hashes;
+        }
+
+        // Files are handed out one at a time, so that a few large files do not leave threads idle.
+        final AtomicInteger nextFileIndex = new AtomicInteger();
+        ArrayList<Future<?>> hashingTasks = new ArrayList<>();
+        for (int i = 1; i < threadCount; i++) {
+            hashingTasks.add(getHashingPool().submit(new Runnable() {
+                @Override
+                public void run() {
+                    hashFiles(files, hashes, nextFileIndex);
+                }
+            }));
+        }
+
+        hashFiles(files, hashes, nextFileIndex);
+        // Waiting for the tasks also makes the hashes they computed visible to this thread.
+        boolean isInterrupted = false;
+        try {
+            for (Future<?> hashingTask : hashingTasks) {
+                while (true) {
+                    try {
+                        hashingTask.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                    }
                 }
             }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new SparksUnknownException("Unable to compute hash of update contents.", e.getCause());
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
+
+        return hashes;
+    }
+
+    // Hashes the files with the indices handed out by nextFileIndex until there are none left. A
+    // failure stops the other threads from taking more files.
+    private static void hashFiles(List<File> files, String[] hashes, AtomicInteger nextFileIndex) {
+        MessageDigest messageDigest = getSha256Digest();
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        int i;
+        while ((i = nextFileIndex.getAndIncrement()) < files.size()) {
+            try {
+                hashes[i] = computeFileHash(files.get(i), messageDigest, buffer);
+            } catch (RuntimeException e) {
+                nextFileIndex.set(files.size());
+                throw e;
+            }
+        }
+    }
+
+    private static String computeFileHash(File file, MessageDigest messageDigest, byte[] buffer) {
+        FileInputStream fileStream = null;
+        try {
+            fileStream = new FileInputStream(file);
+            int numBytesRead;
+            while ((numBytesRead = fileStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, numBytesRead);
+            }
+        } catch (IOException e) {
+            // Should not happen.
+            throw new SparksUnknownException("Unable to compute hash of update contents.", e);
+        } finally {
+            try {
+                if (fileStream != null) fileStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // digest() also resets messageDigest for the next file.
+        return toHexString(messageDigest.digest());
+    }
+
+    public static MessageDigest getSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen.
+            throw new SparksUnknownException("Unable to compute hash of update contents.", e);
+        }
+    }
+
+    public static String toHexString(byte[] hash) {
+        char[] hexChars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hexChars[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0f];
+            hexChars[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0f];
+        }
+
+        return new String(hexChars);
     }
 
     private static String computeHash(InputStream dataStream) {
-        MessageDigest messageDigest = null;
+        MessageDigest messageDigest = getSha256Digest();
         DigestInputStream digestInputStream = null;
         try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
             digestInputStream = new DigestInputStream(dataStream, messageDigest);
             byte[] byteBuffer = new byte[1024 * 8];
             while (digestInputStream.read(byteBuffer) != -1) ;
-        } catch (NoSuchAlgorithmException | IOException e) {
+        } catch (IOException e) {
             // Should not happen.
             throw new SparksUnknownException("Unable to compute hash of update contents.", e);
         } finally {
@@ -93,24 +237,116 @@ public class SparksUpdateUtils {
         }
 
         byte[] hash = messageDigest.digest();
-        return String.format("%064x", new java.math.BigInteger(1, hash));
+        return toHexString(hash);
     }
 
-    public static void copyNecessaryFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath) throws IOException {
-        FileUtils.copyDirectoryContents(currentPackageFolderPath, newPackageFolderPath);
+    // Completes a diff update that was extracted straight into the new package folder: every file
+    // of the current package that the diff neither deleted nor replaced is copied over. If
+    // fileHashes is not null, the hashes of the files carried over are added to it. Files are hard
+    // linked where possible rather than copied.
+    public static void copyMissingFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath, Map<String, String> fileHashes) throws IOException {
         JSONObject diffManifest = SparksUtils.getJsonObjectFromFile(diffManifestFilePath);
+        HashSet<String> deletedFiles = new HashSet<>();
         try {
-            JSONArray deletedFiles = diffManifest.getJSONArray("deletedFiles");
-            for (int i = 0; i < deletedFiles.length(); i++) {
-                String fileNameToDelete = deletedFiles.getString(i);
-                File fileToDelete = new File(newPackageFolderPath, fileNameToDelete);
-                if (fileToDelete.exists()) {
-                    fileToDelete.delete();
-                }
+            JSONArray deletedFilesArray = diffManifest.getJSONArray("deletedFiles");
+            for (int i = 0; i < deletedFilesArray.length(); i++) {
+                deletedFiles.add(deletedFilesArray.getString(i));
             }
         } catch (JSONException e) {
             throw new SparksUnknownException("Unable to copy files from current package during diff update", e);
         }
+
+        Map<String, String> indexedFileHashes = fileHashes != null ? getFileHashIndex(currentPackageFolderPath) : null;
+        copyMissingFilesFromFolder(new File(currentPackageFolderPath), "", new File(newPackageFolderPath), deletedFiles, fileHashes, indexedFileHashes);
+    }
+
+    private static void copyMissingFilesFromFolder(File sourceFolder, String pathPrefix, File destinationFolder, HashSet<String> deletedFiles,
+                                                   Map<String, String> fileHashes, Map<String, String> indexedFileHashes) throws IOException {
+        if (!destinationFolder.exists()) {
+            destinationFolder.mkdirs();
+        }
+
+        for (File sourceFile : sourceFolder.listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + sourceFile.getName();
+            File destinationFile = new File(destinationFolder, sourceFile.getName());
+            if (sourceFile.isDirectory()) {
+                copyMissingFilesFromFolder(sourceFile, relativePath, destinationFile, deletedFiles, fileHashes, indexedFileHashes);
+            } else if (!deletedFiles.contains(relativePath) && !destinationFile.exists()) {
+                if (FileUtils.linkFile(sourceFile, destinationFile)) {
+                    // Files that are not in the index are hashed on verification instead.
+                    if (fileHashes != null && indexedFileHashes.containsKey(relativePath)) {
+                        fileHashes.put(relativePath, indexedFileHashes.get(relativePath));
+                    }
+                } else if (fileHashes != null && indexedFileHashes.containsKey(relativePath)) {
+                    FileUtils.copyFile(sourceFile, destinationFile);
+                    fileHashes.put(relativePath, indexedFileHashes.get(relativePath));
+                } else if (fileHashes != null) {
+                    MessageDigest digest = getSha256Digest();
+                    FileUtils.copyFile(sourceFile, destinationFile, digest);
+                    fileHashes.put(relativePath, toHexString(digest.digest()));
+                } else {
+                    FileUtils.copyFile(sourceFile, destinationFile);
+                }
+            }
+        }
+    }
+
+    // Returns the hashes recorded in the file hash index of the package, keyed by relative path,
+    // for the files whose size and modification time have not changed since they were indexed.
+    public static Map<String, String> getFileHashIndex(String packageFolderPath) {
+        HashMap<String, String> fileHashes = new HashMap<>();
+        String indexPath = SparksUtils.appendPathComponent(packageFolderPath, SparksConstants.PACKAGE_HASH_INDEX_FILE_NAME);
+        if (!FileUtils.fileAtPathExists(indexPath)) {
+            return fileHashes;
+        }
+
+        JSONObject index;
+        try {
+            index = SparksUtils.getJsonObjectFromFile(indexPath);
+        } catch (IOException | SparksMalformedDataException e) {
+            // The files will be hashed again instead.
+            SparksUtils.log(e);
+            return fileHashes;
+        }
+
+        Iterator<String> relativePaths = index.keys();
+        while (relativePaths.hasNext()) {
+            String relativePath = relativePaths.next();
+            JSONArray entry = index.optJSONArray(relativePath);
+            if (entry == null || entry.length() != 3) {
+                continue;
+            }
+
+            File file = new File(packageFolderPath, relativePath);
+            if (file.isFile() && file.length() == entry.optLong(0, -1) && file.lastModified() == entry.optLong(1, -1)) {
+                fileHashes.put(relativePath, entry.optString(2));
+            }
+        }
+
+        return fileHashes;
+    }
+
+    // Records the size, modification time and hash of every file of the package that has a hash in
+    // fileHashes, so that a later diff update can carry them over without hashing them again.
+    public static void writeFileHashIndex(String packageFolderPath, Map<String, String> fileHashes) throws IOException {
+        JSONObject index = new JSONObject();
+        addContentsOfFolderToFileHashIndex(new File(packageFolderPath), "", fileHashes, index);
+        SparksUtils.writeJsonToFile(index, SparksUtils.appendPathComponent(packageFolderPath, SparksConstants.PACKAGE_HASH_INDEX_FILE_NAME));
+    }
+
+    private static void addContentsOfFolderToFileHashIndex(File folder, String pathPrefix, Map<String, String> fileHashes, JSONObject index) {
+        for (File file : folder.listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + file.getName();
+            if (file.isDirectory()) {
+                addContentsOfFolderToFileHashIndex(file, relativePath, fileHashes, index);
+            } else if (fileHashes.containsKey(relativePath)) {
+                JSONArray entry = new JSONArray();
+                entry.put(file.length());
+                entry.put(file.lastModified());
+                entry.put(fileHashes.get(relativePath));
+                SparksUtils.setJSONValueForKey(index, relativePath, entry);
+            }
+        }
     }
 
     public static String findJSBundleInUpdateContents(String folderPath, String expectedFileName) {
@@ -151,14 +387,30 @@ public class SparksUpdateUtils {
         }
     }
 
+    public static void verifyFolderHash(String folderPath, String expectedHash) {
+        verifyFolderHash(folderPath, expectedHash, null);
+    }
+
     // Hashing algorithm:
     // 1. Recursively generate a sorted array of format <relativeFilePath>: <sha256FileHash>
     // 2. JSON stringify the array
     // 3. SHA256-hash the result
-    public static void verifyFolderHash(String folderPath, String expectedHash) {
+    // Files listed in knownFileHashes, e.g. because they were hashed while being written, are not
+    // read again, and the hashes of the other files are added to it.
+    public static void verifyFolderHash(String folderPath, String expectedHash, Map<String, String> knownFileHashes) {
         SparksUtils.log("Verifying hash for folder path: " + folderPath);
         ArrayList<String> updateContentsManifest = new ArrayList<>();
-        addContentsOfFolderToManifest(folderPath, "", updateContentsManifest);
+        ArrayList<String> relativePathsToHash = new ArrayList<>();
+        ArrayList<File> filesToHash = new ArrayList<>();
+        addContentsOfFolderToManifest(folderPath, "", updateContentsManifest, knownFileHashes, relativePathsToHash, filesToHash);
+        String[] fileHashes = computeFileHashes(filesToHash, getHashingThreadCount());
+        for (int i = 0; i < fileHashes.length; i++) {
+            updateContentsManifest.add(relativePathsToHash.get(i) + ":" + fileHashes[i]);
+            if (knownFileHashes != null) {
+                knownFileHashes.put(relativePathsToHash.get(i), fileHashes[i]);
+            }
+        }
+
         //sort manifest strings to make sure, that they are completely equal with manifest strings has been generated in cli!
         Collections.sort(updateContentsManifest);
         JSONArray updateContentsJSONArray = new JSONArray();
@@ -0,0 +1,183 @@
+package com.marf.sparks.react;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Extracts a zip archive that is on disk by inflating its entries concurrently, going through the
+// central directory instead of decoding the archive front to back. The result is the same as with
+// FileUtils.unzipStream.
+class SparksZipExtractor {
+
+    private static final int MAX_EXTRACTION_THREADS = 4;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 64;
+
+    static boolean isSupported() {
+        return Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    static void extract(File zipFile, String destination, Map<String, String> fileHashes) throws IOException {
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            FileUtils.deleteFileOrFolderSilently(destinationFolder);
+        }
+
+        destinationFolder.mkdirs();
+        final String destinationFolderCanonicalPath = destinationFolder.getCanonicalPath() + File.separator;
+
+        final ZipFile zip = new ZipFile(zipFile);
+        ExecutorService executor = null;
+        try {
+            // Later entries with the same name replace earlier ones, as when reading the archive
+            // front to back, so only the last one is extracted.
+            LinkedHashMap<String, ZipEntry> entriesByPath = new LinkedHashMap<>();
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                String fileName = FileUtils.validateFileName(entry.getName(), destinationFolder);
+                entriesByPath.remove(fileName);
+                entriesByPath.put(fileName, entry);
+            }
+
+            // Create all folders up front so that the workers only ever write files.
+            ArrayList<Map.Entry<String, ZipEntry>> fileEntries = new ArrayList<>();
+            for (Map.Entry<String, ZipEntry> entry : entriesByPath.entrySet()) {
+                File file = new File(entry.getKey());
+                if (entry.getValue().isDirectory()) {
+                    file.mkdirs();
+                    setLastModified(file, entry.getValue());
+                } else {
+                    File parent = file.getParentFile();
+                    if (!parent.exists()) {
+                        parent.mkdirs();
+                    }
+
+                    fileEntries.add(entry);
+                }
+            }
+
+            // Start with the largest entries, such as the JS bundle, so that none of them is left
+            // to finish on its own at the end.
+            Collections.sort(fileEntries, new Comparator<Map.Entry<String, ZipEntry>>() {
+                @Override
+                public int compare(Map.Entry<String, ZipEntry> lhs, Map.Entry<String, ZipEntry> rhs) {
+                    return Long.compare(getSize(rhs.getValue()), getSize(lhs.getValue()));
+                }
+            });
+
+            final boolean isHashing = fileHashes != null;
+            int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_EXTRACTION_THREADS));
+            executor = Executors.newFixedThreadPool(threadCount,
+                    SparksExecutor.newThreadFactory("SparksExtract", Process.THREAD_PRIORITY_BACKGROUND));
+            List<Future<String>> results = new ArrayList<>();
+            for (final Map.Entry<String, ZipEntry> entry : fileEntries) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return extractEntry(zip, entry.getValue(), new File(entry.getKey()), isHashing);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < fileEntries.size(); i++) {
+                String hash = getResult(results.get(i));
+                if (isHashing) {
+                    String relativePath = fileEntries.get(i).getKey().substring(destinationFolderCanonicalPath.length()).replace(File.separatorChar, '/');
+                    fileHashes.put(relativePath, hash);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                // After a failure, stop the other workers before the archive is closed and the
+                // caller cleans up the folder they write to.
+                executor.shutdownNow();
+                try {
+                    executor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            zip.close();
+        }
+    }
+
+    // Writes the entry to file and returns its hash, if asked to.
+    private static String extractEntry(ZipFile zip, ZipEntry entry, File file, boolean isHashing) throws IOException {
+        MessageDigest digest = isHashing ? SparksUpdateUtils.getSha256Digest() : null;
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        InputStream entryStream = zip.getInputStream(entry);
+        try {
+            FileOutputStream fout = new FileOutputStream(file);
+            try {
+                int numBytesRead;
+                while ((numBytesRead = entryStream.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Extraction was stopped.");
+                    }
+
+                    fout.write(buffer, 0, numBytesRead);
+                    if (digest != null) {
+                        digest.update(buffer, 0, numBytesRead);
+                    }
+                }
+            } finally {
+                fout.close();
+            }
+        } finally {
+            entryStream.close();
+        }
+
+        setLastModified(file, entry);
+        return digest != null ? SparksUpdateUtils.toHexString(digest.digest()) : null;
+    }
+
+    private static long getSize(ZipEntry entry) {
+        return entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize();
+    }
+
+    private static void setLastModified(File file, ZipEntry entry) {
+        long time = entry.getTime();
+        if (time > 0) {
+            file.setLastModified(time);
+        }
+    }
+
+    private static String getResult(Future<String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction was interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new SparksUnknownException("Unable to extract update contents.", cause);
+        }
+    }
+}
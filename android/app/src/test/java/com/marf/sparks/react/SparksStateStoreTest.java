@@ -0,0 +1,139 @@
+package com.marf.sparks.react;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SparksStateStoreTest {
+
+    // As in SparksStateStore.
+    private static final long MAX_LOG_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File getLogFile() {
+        return new File(mTemporaryFolder.getRoot(), "state.log");
+    }
+
+    // Commits the first record, a=1, and the last record, a=2 and b=2, returning the size of the
+    // log after each of them.
+    private long[] commitTwoRecords() {
+        SparksStateStore stateStore = new SparksStateStore(getLogFile().getPath());
+        stateStore.edit().putString("a", "1").commit();
+        long firstSize = getLogFile().length();
+        stateStore.edit().putString("a", "2").putString("b", "2").commit();
+        return new long[] { firstSize, getLogFile().length() };
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            fileStream.write(contents.getBytes("UTF-8"));
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    @Test
+    public void tornLastRecordIsDroppedAndTruncated() throws Exception {
+        long[] sizes = commitTwoRecords();
+        RandomAccessFile file = new RandomAccessFile(getLogFile(), "rw");
+        try {
+            // As if the app was killed while appending the last record.
+            file.setLength(sizes[1] - 3);
+        } finally {
+            file.close();
+        }
+
+        SparksStateStore stateStore = new SparksStateStore(getLogFile().getPath());
+        assertEquals("1", stateStore.getString("a"));
+        assertNull(stateStore.getString("b"));
+        assertEquals(sizes[0], getLogFile().length());
+
+        // The next record is appended where the torn one started, so it is read back.
+        stateStore.edit().putString("c", "3").commit();
+        stateStore = new SparksStateStore(getLogFile().getPath());
+        assertEquals("1", stateStore.getString("a"));
+        assertEquals("3", stateStore.getString("c"));
+    }
+
+    @Test
+    public void lastRecordFailingItsCrcIsRolledBack() throws Exception {
+        long[] sizes = commitTwoRecords();
+        RandomAccessFile file = new RandomAccessFile(getLogFile(), "rw");
+        try {
+            // The last byte of the payload, just before the CRC.
+            long position = sizes[1] - 5;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        SparksStateStore stateStore = new SparksStateStore(getLogFile().getPath());
+        assertEquals("1", stateStore.getString("a"));
+        assertNull(stateStore.getString("b"));
+        assertEquals(sizes[0], getLogFile().length());
+    }
+
+    @Test
+    public void logIsCompactedOnceItGrowsPastTheMaximumSize() throws Exception {
+        SparksStateStore stateStore = new SparksStateStore(getLogFile().getPath());
+        char[] chars = new char[1024];
+        stateStore.edit().putString("removed", "x").commit();
+        stateStore.edit().remove("removed").commit();
+        for (int i = 0; i < 200; i++) {
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            stateStore.edit().putString("value", new String(chars)).putString("count", "" + i).apply();
+            // A compaction starts the log over with a single record, so it never grows by much
+            // more than one record past the maximum.
+            assertTrue(getLogFile().length() <= MAX_LOG_SIZE + 2 * chars.length);
+        }
+
+        assertFalse(new File(getLogFile().getPath() + ".tmp").exists());
+        stateStore = new SparksStateStore(getLogFile().getPath());
+        assertEquals("199", stateStore.getString("count"));
+        assertEquals(new String(chars), stateStore.getString("value"));
+        assertFalse(stateStore.contains("removed"));
+    }
+
+    @Test
+    public void statusFileIsImportedOnlyOnce() throws Exception {
+        String documentsDirectory = mTemporaryFolder.getRoot().getPath();
+        File sparksFolder = new File(documentsDirectory, SparksConstants.CODE_PUSH_FOLDER_PREFIX);
+        sparksFolder.mkdirs();
+        File statusFile = new File(sparksFolder, SparksConstants.STATUS_FILE);
+        writeFile(statusFile, "{\"currentPackage\":\"current\",\"previousPackage\":\"previous\"}");
+
+        SparksUpdateManager updateManager = new SparksUpdateManager(documentsDirectory, new SparksExecutor());
+        assertEquals("current", updateManager.getCurrentPackageHash());
+        assertEquals("previous", updateManager.getPreviousPackageHash());
+        assertFalse(statusFile.exists());
+        assertTrue(updateManager.getStateStore().contains(SparksConstants.STATE_STATUS_FILE_IMPORTED_KEY));
+
+        JSONObject info = new JSONObject();
+        info.put(SparksConstants.CURRENT_PACKAGE_KEY, "newer");
+        updateManager.updateCurrentPackageInfo(info);
+
+        // Left behind, e.g. by a crash before it was deleted, it must not replace newer state.
+        writeFile(statusFile, "{\"currentPackage\":\"current\",\"previousPackage\":\"previous\"}");
+        updateManager = new SparksUpdateManager(documentsDirectory, new SparksExecutor());
+        assertEquals("newer", updateManager.getCurrentPackageHash());
+        assertFalse(statusFile.exists());
+    }
+}
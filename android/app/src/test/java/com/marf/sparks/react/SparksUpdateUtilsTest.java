@@ -0,0 +1,87 @@
+package com.marf.sparks.react;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SparksUpdateUtilsTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    // Hashes the way verification did before it was parallelized, one file at a time, with the
+    // BigInteger hex encoding.
+    private static String computeReferenceHash(File file) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        return String.format("%064x", new BigInteger(1, messageDigest.digest(Files.readAllBytes(file.toPath()))));
+    }
+
+    private ArrayList<File> createFiles(int count) throws IOException {
+        Random random = new Random(count);
+        ArrayList<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // Includes empty files and files larger than the hashing buffer.
+            byte[] contents = new byte[i % 5 == 0 ? 0 : random.nextInt(200 * 1024)];
+            random.nextBytes(contents);
+            File file = mTemporaryFolder.newFile("file" + i);
+            FileOutputStream fileStream = new FileOutputStream(file);
+            try {
+                fileStream.write(contents);
+            } finally {
+                fileStream.close();
+            }
+
+            files.add(file);
+        }
+
+        return files;
+    }
+
+    @Test
+    public void parallelHashesMatchSequentialHashes() throws Exception {
+        ArrayList<File> files = createFiles(64);
+        String[] sequentialHashes = SparksUpdateUtils.computeFileHashes(files, 1);
+        String[] parallelHashes = SparksUpdateUtils.computeFileHashes(files, 4);
+        assertArrayEquals(sequentialHashes, parallelHashes);
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(computeReferenceHash(files.get(i)), sequentialHashes[i]);
+        }
+    }
+
+    @Test
+    public void fewFilesAreHashedLikeManyFiles() throws Exception {
+        ArrayList<File> files = createFiles(3);
+        String[] hashes = SparksUpdateUtils.computeFileHashes(files, 4);
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(computeReferenceHash(files.get(i)), hashes[i]);
+        }
+    }
+
+    @Test
+    public void toHexStringMatchesBigIntegerEncoding() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            // Leading zero bytes are where the two encodings could differ.
+            if (i % 10 == 0) {
+                hash[0] = 0;
+                hash[1] = 0;
+            }
+
+            assertEquals(String.format("%064x", new BigInteger(1, hash)), SparksUpdateUtils.toHexString(hash));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.marf.sparks.react;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class SparksZipExtractorTest {
+
+    private static final long ENTRY_TIME = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private static void putEntry(ZipOutputStream zipStream, String name, byte[] contents, boolean isStored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        if (isStored) {
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(contents.length);
+            entry.setCrc(crc.getValue());
+        }
+
+        zipStream.putNextEntry(entry);
+        zipStream.write(contents);
+        zipStream.closeEntry();
+    }
+
+    // An archive like an update package: a large bundle, many small assets in nested folders,
+    // empty files and folders, and both deflated and stored entries.
+    private File createArchive() throws IOException {
+        Random random = new Random(0);
+        File zipFile = mTemporaryFolder.newFile("update.zip");
+        ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            byte[] bundle = new byte[3 * 1024 * 1024];
+            for (int i = 0; i < bundle.length; i++) {
+                // Compressible, like JS.
+                bundle[i] = (byte) ('a' + random.nextInt(8));
+            }
+
+            putEntry(zipStream, "CodePush/index.android.bundle", bundle, false);
+            zipStream.putNextEntry(new ZipEntry("CodePush/empty/"));
+            zipStream.closeEntry();
+            for (int i = 0; i < 40; i++) {
+                byte[] asset = new byte[i % 7 == 0 ? 0 : random.nextInt(100 * 1024)];
+                random.nextBytes(asset);
+                putEntry(zipStream, "CodePush/assets/drawable-" + (i % 3) + "/img" + i + ".png", asset, i % 2 == 0);
+            }
+
+            // The same file twice, under names that resolve to the same path. The last one wins.
+            putEntry(zipStream, "CodePush/assets/duplicate.txt", "first".getBytes("UTF-8"), false);
+            putEntry(zipStream, "CodePush/assets/../assets/duplicate.txt", "last".getBytes("UTF-8"), false);
+        } finally {
+            zipStream.close();
+        }
+
+        return zipFile;
+    }
+
+    // Relative path to contents, or null for folders.
+    private static TreeMap<String, byte[]> readTree(File folder) throws IOException {
+        TreeMap<String, byte[]> tree = new TreeMap<>();
+        readTree(folder, "", tree);
+        return tree;
+    }
+
+    private static void readTree(File folder, String pathPrefix, TreeMap<String, byte[]> tree) throws IOException {
+        for (File file : folder.listFiles()) {
+            String relativePath = pathPrefix + file.getName();
+            if (file.isDirectory()) {
+                tree.put(relativePath + "/", null);
+                readTree(file, relativePath + "/", tree);
+            } else {
+                tree.put(relativePath, Files.readAllBytes(file.toPath()));
+                assertEquals(relativePath, ENTRY_TIME / 1000, file.lastModified() / 1000);
+            }
+        }
+    }
+
+    private void unzipStream(File zipFile, File destination, HashMap<String, String> fileHashes) throws IOException {
+        FileInputStream fileStream = new FileInputStream(zipFile);
+        try {
+            FileUtils.unzipStream(fileStream, destination.getPath(), fileHashes);
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    @Test
+    public void extractionMatchesStreamingExtraction() throws Exception {
+        File zipFile = createArchive();
+        File streamedFolder = new File(mTemporaryFolder.getRoot(), "streamed");
+        HashMap<String, String> streamedHashes = new HashMap<>();
+        unzipStream(zipFile, streamedFolder, streamedHashes);
+
+        File extractedFolder = new File(mTemporaryFolder.getRoot(), "extracted");
+        HashMap<String, String> extractedHashes = new HashMap<>();
+        SparksZipExtractor.extract(zipFile, extractedFolder.getPath(), extractedHashes);
+
+        TreeMap<String, byte[]> streamedTree = readTree(streamedFolder);
+        TreeMap<String, byte[]> extractedTree = readTree(extractedFolder);
+        assertEquals(streamedTree.keySet(), extractedTree.keySet());
+        for (String relativePath : streamedTree.keySet()) {
+            assertArrayEquals(relativePath, streamedTree.get(relativePath), extractedTree.get(relativePath));
+        }
+
+        assertEquals(streamedHashes, extractedHashes);
+        assertArrayEquals("last".getBytes("UTF-8"), extractedTree.get("CodePush/assets/duplicate.txt"));
+        assertEquals(SparksUpdateUtils.toHexString(SparksUpdateUtils.getSha256Digest().digest("last".getBytes("UTF-8"))),
+                extractedHashes.get("CodePush/assets/duplicate.txt"));
+
+        // Extracting without hashes writes the same files.
+        File unhashedFolder = new File(mTemporaryFolder.getRoot(), "unhashed");
+        SparksZipExtractor.extract(zipFile, unhashedFolder.getPath(), null);
+        assertEquals(streamedTree.keySet(), readTree(unhashedFolder).keySet());
+    }
+
+    @Test
+    public void entriesOutsideTheDestinationAreRejected() throws Exception {
+        File zipFile = mTemporaryFolder.newFile("slip.zip");
+        ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            putEntry(zipStream, "CodePush/index.android.bundle", "bundle".getBytes("UTF-8"), false);
+            putEntry(zipStream, "../slipped.txt", "slipped".getBytes("UTF-8"), false);
+        } finally {
+            zipStream.close();
+        }
+
+        File destination = mTemporaryFolder.newFolder("work", "destination");
+        File slippedFile = new File(destination.getParentFile(), "slipped.txt");
+        try {
+            SparksZipExtractor.extract(zipFile, destination.getPath(), new HashMap<String, String>());
+            fail("The extractor accepted an entry outside the destination.");
+        } catch (IllegalStateException e) {
+            // Expected, as with streaming extraction.
+        }
+
+        assertFalse(slippedFile.exists());
+        try {
+            unzipStream(zipFile, destination, new HashMap<String, String>());
+            fail("Streaming extraction accepted an entry outside the destination.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        assertFalse(slippedFile.exists());
+    }
+}
@@ -22,6 +22,127 @@ export interface DownloadProgress {
     receivedBytes: number;
 }
 
+export interface DiskUsage {
+    /**
+     * The number of bytes used by each downloaded package, by package hash.
+     */
+    packages: { [packageHash: string]: number };
+
+    /**
+     * The number of bytes used by anything else, such as a download in progress.
+     */
+    otherBytes: number;
+
+    /**
+     * The total number of bytes used by updates, as counted against the storage quota.
+     */
+    totalBytes: number;
+
+    /**
+     * The storage quota in bytes, or 0 if there is none.
+     */
+    quotaBytes: number;
+}
+
+export interface ExecutorLaneMetrics {
+    /**
+     * The number of tasks waiting for a thread.
+     */
+    queuedTasks: number;
+
+    /**
+     * The number of tasks currently running.
+     */
+    activeTasks: number;
+
+    /**
+     * The number of tasks run so far.
+     */
+    completedTasks: number;
+
+    /**
+     * The average and longest time in milliseconds that a task waited before it started running.
+     */
+    averageWaitTime: number;
+    maxWaitTime: number;
+
+    /**
+     * The average and longest time in milliseconds that a task took to run.
+     */
+    averageRunTime: number;
+    maxRunTime: number;
+}
+
+export interface ExecutorMetrics {
+    /**
+     * Tasks that read or change the install state, which run one at a time.
+     */
+    state: ExecutorLaneMetrics;
+
+    /**
+     * Downloads and disk scans, which run in parallel.
+     */
+    io: ExecutorLaneMetrics;
+}
+
+export interface RestartMetrics {
+    /**
+     * When the last reload of the bundle started and finished, in milliseconds since the epoch, or 0 if there was none yet.
+     */
+    lastReloadStartTime: number;
+    lastReloadFinishTime: number;
+
+    /**
+     * The number of reloads started.
+     */
+    reloadCount: number;
+
+    /**
+     * The number of restart requests that were merged into another one instead of causing a reload of their own.
+     */
+    coalescedRequestCount: number;
+}
+
+export interface DownloadAttempt {
+    /**
+     * The hash of the update that was being downloaded.
+     */
+    packageHash: string;
+
+    /**
+     * The number of the attempt within its download, starting at 1.
+     */
+    attempt: number;
+
+    /**
+     * When the attempt started, in milliseconds since the epoch, and how long it took, in milliseconds.
+     */
+    startTime: number;
+    duration: number;
+
+    /**
+     * How far the download got, counting bytes resumed from earlier attempts, and its total size, or -1 if it is unknown.
+     */
+    receivedBytes: number;
+    totalBytes: number;
+
+    /**
+     * How the attempt ended. A stalled attempt received less than the minimum throughput.
+     */
+    outcome: "succeeded" | "failed" | "stalled" | "paused" | "cancelled";
+
+    /**
+     * The reason the attempt failed, and the HTTP status if the server responded with an error.
+     */
+    error?: string;
+    responseCode?: number;
+
+    /**
+     * How long Sparks waited before the next attempt, in milliseconds, if it retried.
+     */
+    retryDelay?: number;
+}
+
 export interface LocalPackage extends Package {
     /**
      * Installs the update by saving it to the location on disk where the runtime expects to find the latest version of the app.
@@ -269,6 +390,59 @@ declare namespace Sparks {
      */
     function getUpdateMetadata(updateState?: UpdateState) : Promise<LocalPackage|null>;
 
+    /**
+     * Reports how much storage the downloaded updates use. Resolves to null on platforms that do not report it.
+     */
+    function getDiskUsage(): Promise<DiskUsage|null>;
+
+    /**
+     * Reports the queue depth and task latency of the threads that run Sparks background work. Resolves to null on platforms that do not report it.
+     */
+    function getExecutorMetrics(): Promise<ExecutorMetrics|null>;
+
+    /**
+     * Reports when the bundle was last reloaded and how many restart requests were merged. Resolves to null on platforms that do not report it.
+     */
+    function getRestartMetrics(): Promise<RestartMetrics|null>;
+
+    /**
+     * Retrieves the latest download attempts, oldest first, including the ones that failed and were retried. Resolves to an empty array on platforms that do not record them.
+     */
+    function getDownloadAttempts(): Promise<DownloadAttempt[]>;
+
+    /**
+     * Pauses the download of an update at its next read, keeping what was downloaded so far. Resolves to whether the update was being downloaded.
+     *
+     * @param packageHash The hash of the update being downloaded.
+     */
+    function pauseDownload(packageHash: string): Promise<boolean>;
+
+    /**
+     * Continues a paused download from where it stopped. Resolves to whether the download was paused.
+     *
+     * @param packageHash The hash of the update being downloaded.
+     */
+    function resumeDownload(packageHash: string): Promise<boolean>;
+
+    /**
+     * Cancels the download of an update and discards what was downloaded so far. The download then fails with the error code "E_DOWNLOAD_CANCELLED". Resolves to whether the update was being downloaded.
+     *
+     * @param packageHash The hash of the update being downloaded.
+     */
+    function cancelDownload(packageHash: string): Promise<boolean>;
+
+    /**
+     * Retrieves the metadata of the packages that are kept on the device besides the current one, most recently running first.
+     */
+    function getRetainedPackages(): Promise<Package[]>;
+
+    /**
+     * Makes a retained package the pending update without downloading it again. Like an installed update, it is loaded on the next restart.
+     *
+     * @param packageHash The hash of one of the packages returned by getRetainedPackages.
+     */
+    function activatePackage(packageHash: string): Promise<void>;
+
     /**
      * Notifies the Sparks runtime that an installed update is considered successful.
      */